@@ -1,5 +1,6 @@
 plugins {
     id("java")
+    id("me.champeau.jmh") version "0.7.3"
 }
 group = "com.forkthus.twofadialog"
 version = "1.0.0"
@@ -13,6 +14,20 @@ dependencies {
     compileOnly("io.papermc.paper:paper-api:1.21.8-R0.1-SNAPSHOT")
     implementation("com.google.zxing:core:3.5.3")        // QR encoding
     implementation("commons-codec:commons-codec:1.16.0") // Base32
+    implementation("com.zaxxer:HikariCP:5.1.0") {         // SQL connection pool (drivers ship with Paper)
+        exclude(group = "org.slf4j")                      // provided by the server
+    }
+
+    testImplementation(platform("org.junit:junit-bom:5.10.2"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+    testRuntimeOnly("org.xerial:sqlite-jdbc:3.46.0.0") // JdbcSessionShareTest, like the jmh config below
+    testRuntimeOnly("org.slf4j:slf4j-nop:2.0.13")
+
+    // Benchmarks run outside the server, so they need what Paper normally provides
+    jmh("io.papermc.paper:paper-api:1.21.8-R0.1-SNAPSHOT")
+    jmh("org.xerial:sqlite-jdbc:3.46.0.0")
+    jmh("org.slf4j:slf4j-nop:2.0.13")
 }
 
 java {
@@ -21,6 +36,17 @@ java {
     }
 }
 
+tasks.test {
+    useJUnitPlatform()
+}
+
+jmh {
+    jmhVersion.set("1.37")
+    profilers.add("gc") // allocation rate next to throughput
+    resultFormat.set("JSON")
+    providers.gradleProperty("jmhIncludes").orNull?.let { includes.add(it) } // e.g. -PjmhIncludes=TotpBenchmark
+}
+
 tasks.jar {
     from(configurations.runtimeClasspath.get().map { if (it.isDirectory) it else zipTree(it) })
     duplicatesStrategy = DuplicatesStrategy.EXCLUDE
@@ -0,0 +1,51 @@
+package com.forkthus.twofadialog.qr;
+
+import com.forkthus.twofadialog.security.Totp;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.awt.Color;
+import java.util.concurrent.TimeUnit;
+
+// QR work done per map, minus the MapCanvas calls that need a running server
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class QrEncodeBenchmark {
+    private String uri;
+
+    @Setup
+    public void setup() {
+        uri = Totp.provisioningUri("My Minecraft Server", "Notch", Totp.newBase32Secret());
+    }
+
+    @Benchmark
+    public BitMatrix encode() throws WriterException {
+        return QrMap.encode(uri);
+    }
+
+    // Per-pixel java.awt.Color lookup, as the renderer did before rasters were cached
+    @Benchmark
+    public void encodeAndColorPixels(Blackhole bh) throws WriterException {
+        BitMatrix matrix = QrMap.encode(uri);
+        for (int y = 0; y < matrix.getHeight(); y++) {
+            for (int x = 0; x < matrix.getWidth(); x++) {
+                bh.consume(matrix.get(x, y) ? Color.BLACK : Color.WHITE);
+            }
+        }
+    }
+
+    // Palette-index raster built once per provisioning URI off the server thread
+    @Benchmark
+    public Object rasterize() {
+        return QrMap.rasterize(uri, (byte) 119, (byte) 34);
+    }
+}
@@ -0,0 +1,52 @@
+package com.forkthus.twofadialog.security;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TotpBenchmark {
+    @Param({"0", "1", "2", "5", "10"})
+    public int skew; // auth.time-window
+
+    private String secret;
+    private String validCode;
+    private String wrongCode;
+
+    @Setup
+    public void setup() {
+        secret = Totp.newBase32Secret();
+        validCode = String.format("%06d", Totp.generate(secret, Instant.now().getEpochSecond() / 30));
+        wrongCode = String.format("%06d", (Integer.parseInt(validCode) + 1) % 1_000_000);
+    }
+
+    @Benchmark
+    public boolean verifyValid() {
+        return Totp.verify(secret, validCode, skew);
+    }
+
+    @Benchmark
+    public boolean verifyWrong() {
+        return Totp.verify(secret, wrongCode, skew);
+    }
+
+    @Benchmark
+    public boolean verifyInt() {
+        return Totp.verify(secret, 123456, skew);
+    }
+
+    @Benchmark
+    public String newBase32Secret() {
+        return Totp.newBase32Secret();
+    }
+}
@@ -0,0 +1,115 @@
+package com.forkthus.twofadialog.storage;
+
+import com.forkthus.twofadialog.security.Totp;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+// Memory per user of the YAML tree against the packed table (heap and off-heap), plus lookup throughput.
+// Bytes per user are reported as the "bytesPerUser" secondary result.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class UserFootprintBenchmark {
+    @Param({"yaml", "packed-heap", "packed-direct"})
+    public String backend;
+
+    @Param({"1000000"})
+    public int users;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public long bytesPerUser;
+    }
+
+    private Path dir;
+    private UserStore yaml;
+    private PackedUserTable table;
+    private Function<UUID, UserRecord> lookup;
+    private UUID[] ids;
+    private int next;
+    private long bytesPerUser;
+
+    @Setup
+    public void setup() throws IOException {
+        ids = new UUID[users];
+        for (int i = 0; i < users; i++) ids[i] = UUID.randomUUID();
+        String secret = Totp.newBase32Secret();
+
+        long before = usedHeap();
+        long offHeap = 0;
+        if (backend.equals("yaml")) {
+            dir = Files.createTempDirectory("twofa-bench");
+            writeUsersYml(dir.resolve("users.yml"), secret);
+            yaml = new YamlUserStore(dir.toFile(), TimeUnit.HOURS.toMillis(1));
+            lookup = yaml::load;
+        } else {
+            boolean direct = backend.equals("packed-direct");
+            table = PackedUserTable.allocate(PackedUserTable.capacityFor(users), direct);
+            UserRecord r = new UserRecord(secret, true, "127.0.0.1", 1L, 0, 0);
+            for (UUID id : ids) table.put(id, r);
+            if (direct) offHeap = (long) table.capacity() * PackedUserTable.SLOT_BYTES;
+            lookup = table::get;
+        }
+        long heap = usedHeap() - before;
+        bytesPerUser = (heap + offHeap) / users;
+    }
+
+    private void writeUsersYml(Path file, String secret) throws IOException {
+        try (Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            w.write("users:\n");
+            for (UUID id : ids) {
+                w.write("  " + id + ":\n    secret: " + secret + "\n    enrolled: true\n    lastip: 127.0.0.1\n    lastlogin: 1\n");
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (yaml != null) yaml.close();
+        if (dir != null) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public UserRecord load(Footprint footprint) {
+        footprint.bytesPerUser = bytesPerUser;
+        UUID id = ids[next];
+        next = (next + 1) % ids.length;
+        return lookup.apply(id);
+    }
+}
@@ -0,0 +1,120 @@
+package com.forkthus.twofadialog.storage;
+
+import com.forkthus.twofadialog.security.Totp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+// Compares the backends on the operations a login performs, at different user counts
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class UserStoreBenchmark {
+    @Param({"yaml", "journal", "sqlite"})
+    public String backend;
+
+    @Param({"1000", "100000", "1000000"})
+    public int users;
+
+    private Path dir;
+    private UserStore store;
+    private UUID[] ids;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("twofa-bench");
+        ids = new UUID[users];
+        for (int i = 0; i < users; i++) ids[i] = UUID.randomUUID();
+
+        if (backend.equals("yaml")) {
+            writeUsersYml(dir.resolve("users.yml"));
+            store = new YamlUserStore(dir.toFile(), TimeUnit.HOURS.toMillis(1)); // write-behind, flushed only by save()
+            return;
+        }
+        store = open(dir.toFile());
+        String secret = Totp.newBase32Secret();
+        for (UUID id : ids) store.update(id, r -> r.withSecret(secret).withLogin("127.0.0.1", 1L));
+        store.save();
+    }
+
+    private UserStore open(File folder) throws IOException {
+        Logger logger = Logger.getLogger("bench");
+        return switch (backend) {
+            case "journal" -> new JournalUserStore(folder, false, 10000, logger);
+            case "sqlite" -> JdbcUserStore.sqlite(folder, "twofa_users", 4, logger);
+            default -> throw new IllegalArgumentException(backend);
+        };
+    }
+
+    // Writing the file directly is much faster than populating a million users through YamlConfiguration
+    private void writeUsersYml(Path file) throws IOException {
+        String secret = Totp.newBase32Secret();
+        try (Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            w.write("users:\n");
+            for (UUID id : ids) {
+                w.write("  " + id + ":\n    secret: " + secret + "\n    enrolled: true\n    lastip: 127.0.0.1\n    lastlogin: 1\n");
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private UUID nextId() {
+        UUID id = ids[next];
+        next = (next + 1) % ids.length;
+        return id;
+    }
+
+    @Benchmark
+    public UserRecord load() {
+        return store.load(nextId());
+    }
+
+    @Benchmark
+    public void setFailedAttempts() {
+        store.setFailedAttempts(nextId(), 1);
+    }
+
+    @Benchmark
+    public UserRecord loginUpdate() {
+        return store.update(nextId(), r -> r.withLogin("127.0.0.1", System.currentTimeMillis()));
+    }
+
+    // One change followed by a blocking save: a full users.yml rewrite for yaml
+    @Benchmark
+    public void setterAndSave() {
+        store.setLastLoginTime(nextId(), System.currentTimeMillis());
+        store.save();
+    }
+}
@@ -1,15 +1,34 @@
 package com.forkthus.twofadialog;
 
+import com.forkthus.twofadialog.admin.BulkJobs;
+import com.forkthus.twofadialog.auth.AttemptLimiter;
+import com.forkthus.twofadialog.auth.AuthSession;
+import com.forkthus.twofadialog.auth.AuthSession.Phase;
+import com.forkthus.twofadialog.auth.FreezeListener;
+import com.forkthus.twofadialog.auth.JdbcSessionShare;
+import com.forkthus.twofadialog.auth.SessionShare;
+import com.forkthus.twofadialog.auth.TimerWheel;
+import com.forkthus.twofadialog.auth.TrustedSessions;
+import com.forkthus.twofadialog.auth.VisibilityManager;
 import com.forkthus.twofadialog.config.ConfigManager;
+import com.forkthus.twofadialog.config.Settings;
+import com.forkthus.twofadialog.metrics.InstrumentedUserStore;
+import com.forkthus.twofadialog.metrics.Histogram;
+import com.forkthus.twofadialog.metrics.Metrics;
+import com.forkthus.twofadialog.metrics.MetricsServer;
 import com.forkthus.twofadialog.qr.QrMap;
 import com.forkthus.twofadialog.security.Totp;
+import com.forkthus.twofadialog.storage.JdbcUserStore;
+import com.forkthus.twofadialog.storage.JournalUserStore;
+import com.forkthus.twofadialog.storage.PackedUserStore;
+import com.forkthus.twofadialog.storage.ShardedUserStore;
+import com.forkthus.twofadialog.storage.UserRecord;
 import com.forkthus.twofadialog.storage.UserStore;
 import com.forkthus.twofadialog.storage.YamlUserStore;
 import com.forkthus.twofadialog.ui.Dialogs;
 import io.papermc.paper.event.player.PlayerCustomClickEvent;
 import io.papermc.paper.dialog.DialogResponseView;
 import io.papermc.paper.connection.PlayerGameConnection;
-import com.destroystokyo.paper.event.player.PlayerJumpEvent;
 import net.kyori.adventure.text.Component;
 import org.bukkit.Bukkit;
 import org.bukkit.GameMode;
@@ -30,88 +49,280 @@ import org.bukkit.persistence.PersistentDataType;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitTask;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public final class TwoFactorPlugin extends JavaPlugin implements Listener {
-    private UserStore store;
+    private volatile UserStore store; // replaced by /2fa migrate
+    private volatile String storeType;  // backend behind store; storage.type may have been edited since
     private ConfigManager config;
-    private final Set<UUID> frozen = ConcurrentHashMap.newKeySet();
-    private final Map<UUID, BukkitTask> askTasks = new ConcurrentHashMap<>();
-    private final Map<UUID, BukkitTask> timeoutTasks = new ConcurrentHashMap<>();
-    private final Map<UUID, Long> authStartTimes = new ConcurrentHashMap<>();
-    private final Map<UUID, ItemStack[]> backupInventories = new ConcurrentHashMap<>();
-    private final Map<UUID, Float[]> backupLookAngles = new ConcurrentHashMap<>(); // [yaw, pitch]
-    private BukkitTask viewLockTask;
+    private final Map<UUID, AuthSession> sessions = new ConcurrentHashMap<>(); // frozen players, one entry per player
+    private final Map<UUID, Prefetch> prefetched = new ConcurrentHashMap<>(); // loaded in async pre-login, consumed by onJoin
+    private static final long PREFETCH_TTL_MS = 60_000;
+    private record Prefetch(UserRecord record, long loadedAt, long sharedUntil) { }
+    private final Set<UUID> online = ConcurrentHashMap.newKeySet(); // logging in or on the server, checked by purge per removal
+    private ExecutorService authExecutor;
+    private TrustedSessions trusted; // networks that skip 2FA, checked in memory on join
+    private SessionShare share;      // logins shared with the other servers behind the proxy, null when off
+    private final AttemptLimiter limiter = new AttemptLimiter(); // failed codes per account and per IP, in memory
+    private final TimerWheel timers = new TimerWheel(1024); // session timeouts and ask prompts, in ticks
+    private BukkitTask timerTask;
+    private final VisibilityManager visibility = new VisibilityManager(this, sessions::containsKey);
+    private FreezeListener freezeListener;         // registered only while sessions is non-empty
+    private boolean freezeListenerRegistered;
+    private TimerWheel.Timer freezeListenerIdle;   // pending unregister after the last session ended
+    private static final long FREEZE_LISTENER_LINGER_TICKS = 200;
+    private record Waiting(Player player, AuthSession session, String ip) { }
+    private final ArrayDeque<Waiting> admissionQueue = new ArrayDeque<>(); // joined players waiting to start 2FA, main thread only
+    private long admittedCount, admittedWaitMs; // for /2fa sessions
+    private final Metrics metrics = new Metrics();
+    private MetricsServer metricsServer;          // loopback /metrics endpoint, null unless enabled
+    private BulkJobs bulk;                        // /2fa purge, export and import
     private final NamespacedKey QR_TAG = QrMap.QR_TAG;
 
     @Override public void onEnable() {
         saveDefaultConfig();
         config = new ConfigManager(this);
-        store = new YamlUserStore(getDataFolder());
+        try {
+            store = new InstrumentedUserStore(openStore(config.getStorageType()), metrics);
+            storeType = storageType(config.getStorageType());
+        } catch (IOException e) {
+            getLogger().severe("Could not open " + config.getStorageType() + " user storage: " + e.getMessage());
+            Bukkit.getPluginManager().disablePlugin(this);
+            return;
+        }
+        bulk = new BulkJobs(() -> store, config, getDataFolder(), getLogger());
+        for (Player p : Bukkit.getOnlinePlayers()) online.add(p.getUniqueId()); // enabled on a running server
+        trusted = new TrustedSessions(getDataFolder(), config.getTrustedMaxPlayers(), config.getTrustedMaxPerPlayer(), getLogger());
+        try {
+            share = openShare(config.getShareType());
+        } catch (IOException e) {
+            getLogger().warning("Could not open shared 2FA sessions, every server will ask on its own: " + e.getMessage());
+        }
+        authExecutor = Executors.newFixedThreadPool(Math.max(1, config.getVerifyThreads()), r -> {
+            Thread t = new Thread(r, "TwoFADialog-Verify");
+            t.setDaemon(true);
+            return t;
+        });
         Bukkit.getPluginManager().registerEvents(this, this);
-        
-        // Start view lock task that runs every tick to force frozen players to look down
-        viewLockTask = Bukkit.getScheduler().runTaskTimer(this, () -> {
-            for (UUID frozenId : frozen) {
-                Player p = Bukkit.getPlayer(frozenId);
-                if (p != null && p.isOnline()) {
-                    Location loc = p.getLocation();
-                    // Only lock view if they have a QR map (to avoid locking during initial dialog)
-                    ItemStack item = p.getInventory().getItem(0);
-                    boolean hasQrMap = item != null && item.getItemMeta() != null && 
-                        item.getItemMeta().getPersistentDataContainer().get(QR_TAG, PersistentDataType.BYTE) != null;
-                    
-                    if (hasQrMap && Math.abs(loc.getPitch() - 90f) > 0.1f) {
-                        loc.setPitch(90f); // Force looking straight down
-                        p.teleport(loc);
-                        // getLogger().info("Forcing " + p.getName() + " to look down - was at pitch " + loc.getPitch());
-                    }
-                }
+        freezeListener = new FreezeListener(sessions, config);
+        // One task admits queued joins, drives every session timer and applies this tick's hide/show changes
+        timerTask = Bukkit.getScheduler().runTaskTimer(this, () -> {
+            admitQueued();
+            timers.tick();
+            visibility.flush();
+        }, 1L, 1L);
+        // Forget failure windows that have aged out
+        Bukkit.getScheduler().runTaskTimerAsynchronously(this,
+                () -> limiter.prune(System.currentTimeMillis(), config.getFailedAttemptWindowMinutes() * 60_000L), 1200L, 1200L);
+        registerGauges();
+        if (config.getMetricsHttpEnabled()) {
+            try {
+                metricsServer = new MetricsServer(metrics, config.getMetricsHttpPort());
+            } catch (IOException e) {
+                getLogger().warning("Could not start metrics endpoint on port " + config.getMetricsHttpPort() + ": " + e.getMessage());
             }
-        }, 1L, 2L); // Run every 2 ticks for better performance
+        }
         
         getLogger().info("TwoFactorDialogs enabled");
     }
 
     @Override public void onDisable() {
-        askTasks.values().forEach(BukkitTask::cancel);
-        timeoutTasks.values().forEach(BukkitTask::cancel);
-        if (viewLockTask != null) {
-            viewLockTask.cancel();
+        sessions.values().forEach(AuthSession::end);
+        if (timerTask != null) {
+            timerTask.cancel();
+        }
+        timers.clear();
+        admissionQueue.clear();
+        if (authExecutor != null) {
+            // Let in-flight verifications finish their store writes before the store closes
+            authExecutor.shutdown();
+            try {
+                authExecutor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+        if (bulk != null) {
+            bulk.close();
+        }
+        QrMap.shutdown();
+        if (share != null) {
+            share.close();
+        }
+        if (trusted != null) {
+            trusted.close();
         }
         if (store != null) {
             store.close();
         }
     }
 
+    // Sampled on every /2fa stats and scrape; each supplier must be safe off the server thread
+    private void registerGauges() {
+        for (Phase phase : Phase.values()) {
+            if (phase == Phase.DONE) continue;
+            metrics.gauge("sessions{phase=\"" + phase.name().toLowerCase() + "\"}",
+                    () -> sessions.values().stream().filter(s -> s.phase() == phase).count());
+        }
+        metrics.gauge("trusted_players", trusted::size);
+        metrics.gauge("attempt_windows", limiter::size);
+        metrics.gauge("dialog_cache_hits", Dialogs::cacheHits);
+        metrics.gauge("dialog_cache_misses", Dialogs::cacheMisses);
+        metrics.gauge("qr_encoded", QrMap::encoded);
+        metrics.gauge("qr_rendered", QrMap::rendered);
+        metrics.gauge("storage_bytes", () -> store.storageBytes());
+    }
+    
+    private UserStore openStore(String type) throws IOException {
+        return switch (type) {
+            case "yaml" -> new YamlUserStore(getDataFolder(), config.getStorageFlushInterval() * 1000L);
+            case "journal" -> new JournalUserStore(getDataFolder(), config.getJournalFsync(), config.getJournalCompactThreshold(), getLogger());
+            case "sharded" -> new ShardedUserStore(getDataFolder(), config.getShardedIdleMinutes() * 60_000L, getLogger());
+            case "packed" -> new PackedUserStore(getDataFolder(), config.getStorageFlushInterval() * 1000L, getLogger());
+            case "sqlite" -> JdbcUserStore.sqlite(getDataFolder(), config.getSqlTable(), config.getSqlPoolSize(), getLogger());
+            case "mysql", "mariadb" -> JdbcUserStore.mysql(config.getSqlHost(), config.getSqlPort(), config.getSqlDatabase(),
+                    config.getSqlUsername(), config.getSqlPassword(), config.getSqlTable(), config.getSqlPoolSize(), getLogger());
+            default -> throw new IOException("Unknown storage type '" + type + "'");
+        };
+    }
+    
+    private SessionShare openShare(String type) throws IOException {
+        return switch (type) {
+            case "off", "false", "none" -> null; // unquoted off reads as false in YAML
+            case "sqlite" -> {
+                File file = new File(config.getShareSqliteFile());
+                if (!file.isAbsolute()) file = new File(getDataFolder(), config.getShareSqliteFile());
+                yield JdbcSessionShare.sqlite(file, config.getShareTable(), getLogger());
+            }
+            case "mysql", "mariadb" -> JdbcSessionShare.mysql(config.getSqlHost(), config.getSqlPort(), config.getSqlDatabase(),
+                    config.getSqlUsername(), config.getSqlPassword(), config.getShareTable(), getLogger());
+            default -> throw new IOException("Unknown network.session-share.type '" + type + "'");
+        };
+    }
+
     /* ------------ Entry points ------------ */
 
+    @EventHandler
+    public void onPreLogin(AsyncPlayerPreLoginEvent e) {
+        // Runs off the server thread: load the player's record now so onJoin never waits on storage
+        UUID id = e.getUniqueId();
+        String ip = e.getAddress().getHostAddress();
+        long now = System.currentTimeMillis();
+        online.add(id); // before the load, so a purge running now keeps what we are about to read
+        prefetched.values().removeIf(pf -> now - pf.loadedAt() > PREFETCH_TTL_MS); // logins that never reached onJoin
+        
+        // Account or IP banned by the in-memory limiter: refuse without touching storage
+        long limited = config.getMaxFailedAttempts() > 0 ? limiter.bannedUntil(id, ip, now) : 0;
+        if (limited > 0) {
+            long remainingBanTime = (limited - now) / (60 * 1000); // minutes
+            getLogger().warning("Player " + e.getName() + " (" + ip + ") tried to join while banned for failed attempts. Ban expires in " + remainingBanTime + " minutes.");
+            e.disallow(AsyncPlayerPreLoginEvent.Result.KICK_BANNED, Component.text(config.getWrongCodeBannedError((int)remainingBanTime)));
+            return;
+        }
+        
+        UserRecord rec;
+        try {
+            rec = store.load(id);
+        } catch (RuntimeException ex) {
+            getLogger().warning("Could not load 2FA data for " + e.getName() + ": " + ex.getMessage());
+            e.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, Component.text(config.getStorageUnavailableError()));
+            return;
+        }
+        
+        // Reject banned players before the server creates an entity, loads chunks or teleports them
+        if (isPlayerBanned(rec)) {
+            long remainingBanTime = (rec.banExpiry() - now) / (60 * 1000); // minutes
+            getLogger().warning("Player " + e.getName() + " (" + ip + ") tried to join while banned for failed attempts. Ban expires in " + remainingBanTime + " minutes.");
+            e.disallow(AsyncPlayerPreLoginEvent.Result.KICK_BANNED, Component.text(config.getWrongCodeBannedError((int)remainingBanTime)));
+            return;
+        }
+        if (rec.banExpiry() <= now && (rec.banExpiry() != 0 || rec.failedAttempts() != 0)) {
+            // A persisted ban ran out: clear it once, here, instead of on every failed code
+            try {
+                rec = store.update(id, r -> r.banExpiry() > now ? r : r.withFailedAttempts(0).withBanExpiry(0));
+            } catch (RuntimeException ex) {
+                getLogger().warning("Could not clear expired 2FA ban for " + e.getName() + ": " + ex.getMessage());
+            }
+        }
+        
+        // A login on another server behind the proxy, looked up here so onJoin never waits on the network
+        long sharedUntil = 0;
+        if (share != null && rec.enrolled()) {
+            try {
+                sharedUntil = share.validUntil(id, ip, config.getShareRequireSameIp(), now);
+            } catch (RuntimeException ex) {
+                getLogger().warning("Could not look up shared 2FA session for " + e.getName() + ": " + ex.getMessage());
+            }
+        }
+        prefetched.put(id, new Prefetch(rec, now, sharedUntil));
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLoginResult(AsyncPlayerPreLoginEvent e) {
+        // Another plugin refused the login, the player will never reach onJoin
+        if (e.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            prefetched.remove(e.getUniqueId());
+            if (Bukkit.getPlayer(e.getUniqueId()) == null) online.remove(e.getUniqueId());
+        }
+    }
+
     @EventHandler
     public void onJoin(PlayerJoinEvent e) {
         Player p = e.getPlayer();
         UUID id = p.getUniqueId();
         String currentIP = p.getAddress().getAddress().getHostAddress();
+        online.add(id);
+        Prefetch pf = prefetched.remove(id);
+        // No prefetch when the plugin was enabled mid-login: ask for 2FA, startAuth reads the record off the server thread
+        UserRecord rec = pf != null ? pf.record() : UserRecord.EMPTY;
         
         // Check if player is currently banned for failed attempts
-        if (isPlayerBanned(id)) {
-            long banExpiry = store.getBanExpiry(id);
-            long remainingBanTime = (banExpiry - System.currentTimeMillis()) / (60 * 1000); // minutes
+        if (isPlayerBanned(rec)) {
+            long remainingBanTime = (rec.banExpiry() - System.currentTimeMillis()) / (60 * 1000); // minutes
             getLogger().warning("Player " + p.getName() + " (" + currentIP + ") tried to join while banned for failed attempts. Ban expires in " + remainingBanTime + " minutes.");
             p.kick(Component.text(config.getWrongCodeBannedError((int)remainingBanTime)));
             return;
         }
         
-        // Check if user is enrolled and using the same IP as last successful login
-        if (store.hasSecret(id) && store.isEnrolled(id)) {
-            String lastIP = store.getLastIP(id);
-            long lastLoginTime = store.getLastLoginTime(id);
+        // Check if user is enrolled and joining from a network they recently passed 2FA from
+        if (rec.hasSecret() && rec.enrolled()) {
+            InetAddress address = p.getAddress().getAddress();
             long currentTime = System.currentTimeMillis();
-            long bypassDurationMs = config.getIpBypassDays() * 24 * 60 * 60 * 1000L;
+            boolean bypass = trusted.isTrusted(id, address, currentTime);
+            
+            if (!bypass) {
+                // Same IP as last successful login AND within ip-bypass-days (logins from before trusted networks existed)
+                long bypassUntil = rec.lastLogin() + config.getIpBypassDays() * 24 * 60 * 60 * 1000L;
+                if (currentIP.equals(rec.lastIp()) && currentTime <= bypassUntil) {
+                    bypass = true;
+                    trusted.trust(id, address, trustedPrefix(address), bypassUntil);
+                }
+            }
+            
+            boolean shared = !bypass && pf != null && pf.sharedUntil() > currentTime;
             
-            if (currentIP.equals(lastIP) && (currentTime - lastLoginTime) <= bypassDurationMs) {
-                // Same IP as last successful login AND within one week - allow immediate access
-                getLogger().info("Player " + p.getName() + " (" + currentIP + ") bypassed 2FA using IP bypass");
+            if (bypass || shared) {
+                if (shared) {
+                    getLogger().info("Player " + p.getName() + " (" + currentIP + ") bypassed 2FA using a session from another server");
+                    metrics.sharedBypasses.increment();
+                } else {
+                    getLogger().info("Player " + p.getName() + " (" + currentIP + ") bypassed 2FA using IP bypass");
+                    metrics.ipBypasses.increment();
+                }
+                recordBypass(p, currentTime);
+                visibility.viewerReady(p); // must not see anyone still authenticating
                 if (!isVanished(p)) {
                     Component joinMsg = Component.text(config.getJoinMessage(p.getName())).color(net.kyori.adventure.text.format.NamedTextColor.YELLOW);
                     Bukkit.getServer().broadcast(joinMsg);
@@ -123,43 +334,138 @@ public final class TwoFactorPlugin extends JavaPlugin implements Listener {
         // Hide join message until authentication is complete
         e.setJoinMessage(null);
         
-        // Teleport to spawn location first, then freeze and authenticate
-        Bukkit.getScheduler().runTaskLater(this, () -> {
-            if (!p.isOnline()) return;
-            
-            // Teleport to server's main spawn location (like /spawn command)
-            p.teleport(Bukkit.getWorlds().get(0).getSpawnLocation());
-            
-            if (!store.hasSecret(id)) {
-                // First-time: create secret now, freeze and show scan prompt
-                getLogger().info("New player " + p.getName() + " (" + currentIP + ") starting 2FA registration");
-                freeze(p);
-                String secret = Totp.newBase32Secret();
-                store.setSecret(id, secret);
-                startRegistrationTimeout(p);
-                showScanPrompt(p);
-            } else if (!store.isEnrolled(id)) {
-                // Not enrolled yet (never completed first OTP), freeze and show scan prompt
-                getLogger().info("Player " + p.getName() + " (" + currentIP + ") resuming 2FA registration");
-                freeze(p);
-                startRegistrationTimeout(p);
-                showScanPrompt(p);
-            } else {
-                // Returning user: freeze + show login
-                getLogger().info("Player " + p.getName() + " (" + currentIP + ") starting 2FA login");
-                freeze(p);
-                startLoginTimeout(p);
-                showLogin(p, null);
+        // Block the player right away, but leave the heavy setup to the admission queue (next tick unless a join storm is on)
+        AuthSession session = new AuthSession(id);
+        sessions.put(id, session);
+        sessionStarted();
+        admissionQueue.add(new Waiting(p, session, currentIP));
+        int perTick = config.getAdmissionsPerTick();
+        if (perTick > 0 && admissionQueue.size() > perTick) {
+            p.showDialog(Dialogs.queued(config, admissionQueue.size()));
+        }
+    }
+    
+    // Starts at most auth.admissions-per-tick sessions, oldest first
+    private void admitQueued() {
+        int perTick = config.getAdmissionsPerTick();
+        int admitted = 0;
+        long now = System.currentTimeMillis();
+        while ((perTick <= 0 || admitted < perTick) && !admissionQueue.isEmpty()) {
+            Waiting w = admissionQueue.poll();
+            Player p = w.player();
+            if (!p.isOnline() || sessions.get(p.getUniqueId()) != w.session()) continue; // left while waiting
+            admitted++;
+            admittedCount++;
+            admittedWaitMs += now - w.session().createdAt();
+            startAuth(p, w.ip());
+        }
+    }
+    
+    // A join that skipped 2FA still counts as activity for /2fa purge. The last IP is cleared with it, so the
+    // refreshed login time can never extend the last-IP bypass; the trusted network or shared session carries it.
+    private void recordBypass(Player p, long now) {
+        UUID id = p.getUniqueId();
+        authExecutor.execute(() -> {
+            try {
+                store.update(id, r -> r.withLastLogin(Math.max(now, r.lastLogin())).withLastIp(null));
+            } catch (RuntimeException ex) {
+                getLogger().warning("Could not record 2FA bypass for " + p.getName() + ": " + ex.getMessage());
+            }
+        });
+    }
+
+    // Teleport to spawn location first, then freeze and authenticate; timeouts count from here.
+    // The record is read, and a new player's secret written, on authExecutor: a store miss never blocks the tick.
+    private void startAuth(Player p, String currentIP) {
+        UUID id = p.getUniqueId();
+        AuthSession session = sessions.get(id);
+        // Teleport to server's main spawn location (like /spawn command)
+        p.teleport(Bukkit.getWorlds().get(0).getSpawnLocation());
+        
+        authExecutor.execute(() -> {
+            UserRecord before = null, current = null;
+            try {
+                before = store.load(id);
+                String secret = before.hasSecret() ? null : Totp.newBase32Secret();
+                current = secret == null ? before : store.update(id, r -> r.hasSecret() ? r : r.withSecret(secret));
+            } catch (RuntimeException ex) {
+                getLogger().warning("Could not load 2FA data for " + p.getName() + ": " + ex.getMessage());
             }
-        }, 1L); // Delay by 1 tick to ensure player is fully loaded
+            boolean created = before != null && !before.hasSecret();
+            UserRecord rec = current;
+            if (!isEnabled()) return;
+            Bukkit.getScheduler().runTask(this, () -> {
+                if (!p.isOnline() || sessions.get(id) != session) return; // left meanwhile
+                if (rec == null) {
+                    unfreeze(p);
+                    p.kick(Component.text(config.getStorageUnavailableError()));
+                    return;
+                }
+                if (isPlayerBanned(rec)) {
+                    // Only reachable without a prefetched record, onJoin refuses the rest
+                    unfreeze(p);
+                    p.kick(Component.text(config.getWrongCodeBannedError((int) ((rec.banExpiry() - System.currentTimeMillis()) / 60_000))));
+                    return;
+                }
+                session.secret(rec.secret());
+                startAuth(p, currentIP, rec, created);
+            });
+        });
+    }
+
+    private void startAuth(Player p, String currentIP, UserRecord current, boolean created) {
+        if (created) {
+            // First-time: secret just created, freeze and show scan prompt
+            getLogger().info("New player " + p.getName() + " (" + currentIP + ") starting 2FA registration");
+            freeze(p, Phase.SCAN_PROMPT);
+            QrMap.prepare(qrUri(p, current.secret())); // encode while the player reads the prompt
+            startRegistrationTimeout(p);
+            showScanPrompt(p);
+        } else if (!current.enrolled()) {
+            // Not enrolled yet (never completed first OTP), freeze and show scan prompt
+            getLogger().info("Player " + p.getName() + " (" + currentIP + ") resuming 2FA registration");
+            freeze(p, Phase.SCAN_PROMPT);
+            QrMap.prepare(qrUri(p, current.secret()));
+            startRegistrationTimeout(p);
+            showScanPrompt(p);
+        } else {
+            // Returning user: freeze + show login
+            getLogger().info("Player " + p.getName() + " (" + currentIP + ") starting 2FA login");
+            freeze(p, Phase.LOGIN);
+            startLoginTimeout(p);
+            showLogin(p, null);
+        }
+    }
+
+    // The freeze guards only listen while someone is authenticating
+    private void sessionStarted() {
+        if (freezeListenerIdle != null) {
+            freezeListenerIdle.cancel();
+            freezeListenerIdle = null;
+        }
+        if (!freezeListenerRegistered) {
+            Bukkit.getPluginManager().registerEvents(freezeListener, this);
+            freezeListenerRegistered = true;
+        }
+    }
+    
+    private void sessionEnded() {
+        if (!sessions.isEmpty() || !freezeListenerRegistered || freezeListenerIdle != null) return;
+        // Linger a little, so a steady trickle of logins does not re-register the handlers every time
+        freezeListenerIdle = timers.schedule(FREEZE_LISTENER_LINGER_TICKS, () -> {
+            freezeListenerIdle = null;
+            if (sessions.isEmpty() && freezeListenerRegistered) {
+                HandlerList.unregisterAll(freezeListener);
+                freezeListenerRegistered = false;
+            }
+        });
     }
 
     @EventHandler
     public void onQuit(PlayerQuitEvent e) {
-        Player p = e.getPlayer();
-        unfreeze(p); // This will restore the inventory automatically
-        cancelAsk(p.getUniqueId());
-        cancelTimeout(p.getUniqueId());
+        unfreeze(e.getPlayer()); // Restores the inventory and cancels the session's tasks
+        online.remove(e.getPlayer().getUniqueId());
+        visibility.quit(e.getPlayer());
         // No need to clean QR maps since unfreeze restores original inventory
     }
 
@@ -169,18 +475,12 @@ public final class TwoFactorPlugin extends JavaPlugin implements Listener {
         int timeLeft = getRemainingTime(p.getUniqueId());
         p.showDialog(Dialogs.scanPrompt(config, timeLeft)); 
     }
-    private void scheduleAsk(Player p) {
-        cancelAsk(p.getUniqueId());
-        askTasks.put(p.getUniqueId(), Bukkit.getScheduler().runTaskLater(this, () -> {
-            if (p.isOnline()) {
-                int timeLeft = getRemainingTime(p.getUniqueId());
-                p.showDialog(Dialogs.askFinished(config, timeLeft));
+    private void scheduleAsk(Player p, AuthSession session) {
+        session.ask(timers.schedule(config.getScanAskDelay() * 20L, () -> {
+            if (p.isOnline() && session.isActive()) {
+                p.showDialog(Dialogs.askFinished(config, session.remainingSeconds()));
             }
-        }, config.getScanAskDelay() * 20L)); // configurable delay in seconds
-    }
-    private void cancelAsk(UUID id) {
-        var t = askTasks.remove(id);
-        if (t != null) t.cancel();
+        })); // configurable delay in seconds
     }
     private void showLogin(Player p, String error) { 
         int timeLeft = getRemainingTime(p.getUniqueId());
@@ -190,99 +490,167 @@ public final class TwoFactorPlugin extends JavaPlugin implements Listener {
     /* ------------ Timeout management ------------ */
     
     private void startRegistrationTimeout(Player p) {
-        UUID id = p.getUniqueId();
-        authStartTimes.put(id, System.currentTimeMillis());
-        int timeoutSeconds = config.getRegistrationTimeout();
-        
-        timeoutTasks.put(id, Bukkit.getScheduler().runTaskLater(this, () -> {
-            if (p.isOnline() && frozen.contains(id)) {
-                unfreeze(p);
-                cancelAsk(id);
-                p.kick(Component.text(config.getTimeoutExpiredError()));
-            }
-        }, timeoutSeconds * 20L));
+        startTimeout(p, config.getRegistrationTimeout());
     }
     
     private void startLoginTimeout(Player p) {
-        UUID id = p.getUniqueId();
-        authStartTimes.put(id, System.currentTimeMillis());
-        int timeoutSeconds = config.getLoginTimeout();
+        startTimeout(p, config.getLoginTimeout());
+    }
+    
+    private void startTimeout(Player p, int timeoutSeconds) {
+        AuthSession session = sessions.get(p.getUniqueId());
+        if (session == null) return;
         
-        timeoutTasks.put(id, Bukkit.getScheduler().runTaskLater(this, () -> {
-            if (p.isOnline() && frozen.contains(id)) {
+        session.startTimeout(timeoutSeconds, timers.schedule(timeoutSeconds * 20L, () -> {
+            if (p.isOnline() && session.isActive()) {
+                metrics.timeouts.increment();
                 unfreeze(p);
                 p.kick(Component.text(config.getTimeoutExpiredError()));
             }
-        }, timeoutSeconds * 20L));
+        }));
     }
     
-    private void cancelTimeout(UUID id) {
-        var t = timeoutTasks.remove(id);
-        if (t != null) t.cancel();
-        authStartTimes.remove(id);
+    private int getRemainingTime(UUID id) {
+        AuthSession session = sessions.get(id);
+        return session == null ? 0 : session.remainingSeconds();
     }
     
-    private int getRemainingTime(UUID id) {
-        Long startTime = authStartTimes.get(id);
-        if (startTime == null) return 0;
+    private boolean isPlayerBanned(UserRecord rec) {
+        if (config.getMaxFailedAttempts() <= 0) return false; // Feature disabled
+        return rec.banExpiry() > System.currentTimeMillis();
+    }
+    
+    /* ------------ OTP verification pipeline ------------ */
+    
+    private record LoginOutcome(boolean success, UserRecord before, AttemptLimiter.Result failure) { }
+    
+    // HMAC check and the store write run on authExecutor; only world-facing steps come back to the server thread
+    private void submitLogin(Player player, AuthSession session, String otp) {
+        UUID id = player.getUniqueId();
+        if (session.verifying()) return; // this player's previous submit is still being checked
+        session.verifying(true);
         
-        boolean isRegistration = !store.hasSecret(id) || !store.isEnrolled(id);
-        int totalTimeout = isRegistration ? config.getRegistrationTimeout() : config.getLoginTimeout();
+        String currentIP = player.getAddress().getAddress().getHostAddress();
+        int code = Totp.parseCode(otp);
+        Settings settings = config.settings();
         
-        long elapsed = (System.currentTimeMillis() - startTime) / 1000;
-        return Math.max(0, totalTimeout - (int)elapsed);
+        authExecutor.execute(() -> {
+            LoginOutcome outcome = null;
+            long start = System.nanoTime();
+            try {
+                outcome = verifyAndPersist(id, code, currentIP, settings);
+            } catch (RuntimeException ex) {
+                getLogger().warning("Could not verify 2FA code for " + player.getName() + ": " + ex.getMessage());
+            } finally {
+                metrics.verify.since(start);
+            }
+            LoginOutcome result = outcome;
+            if (!isEnabled()) return;
+            Bukkit.getScheduler().runTask(this, () -> {
+                session.verifying(false);
+                if (!player.isOnline() || !session.isActive()) return; // timed out or left meanwhile
+                if (result == null) {
+                    showLogin(player, config.getStorageUnavailableError());
+                } else if (result.success()) {
+                    completeLogin(player, result.before());
+                } else {
+                    handleFailedAttempt(player, result.failure());
+                }
+            });
+        });
     }
     
-    private boolean isPlayerBanned(UUID id) {
-        if (config.getMaxFailedAttempts() <= 0) return false; // Feature disabled
-        long banExpiry = store.getBanExpiry(id);
-        return banExpiry > System.currentTimeMillis();
+    // Runs on authExecutor: one read and the HMAC check; a write only on success or when a ban starts
+    private LoginOutcome verifyAndPersist(UUID id, int code, String ip, Settings settings) {
+        UserRecord before = store.load(id);
+        if (Totp.verify(before.secret(), code, settings.timeWindow())) {
+            // Reset failed attempts and ban, mark enrolled, save IP and login time for future logins
+            store.update(id, r -> r.withLogin(ip, System.currentTimeMillis()));
+            limiter.clear(id);
+            Totp.forget(before.secret()); // drop the cached HMAC key, this session is done
+            return new LoginOutcome(true, before, null);
+        }
+        if (settings.maxFailedAttempts() <= 0) return new LoginOutcome(false, before, null);
+        
+        // Count the attempt in memory; only a new account ban is written, so it survives a restart
+        AttemptLimiter.Result failure = limiter.recordFailure(id, ip, System.currentTimeMillis(), settings);
+        if (failure.accountBanStarted()) {
+            store.update(id, r -> r.withFailedAttempts(failure.attempts()).withBanExpiry(failure.bannedUntil()));
+        }
+        return new LoginOutcome(false, before, failure);
     }
     
-    private void handleFailedAttempt(Player player) {
-        UUID id = player.getUniqueId();
+    private void completeLogin(Player player, UserRecord before) {
+        AuthSession session = sessions.get(player.getUniqueId());
+        if (session != null) metrics.joinToAuth.record((System.currentTimeMillis() - session.createdAt()) * 1_000_000L);
+        (before.enrolled() ? metrics.logins : metrics.registrations).increment();
+        handleSuccessfulLogin(player, before);
+        if (!before.enrolled()) QrMap.forget(qrUri(player, before.secret()));
+        
+        // Remember this network so the next join from it skips 2FA
+        int bypassDays = config.getIpBypassDays();
+        if (bypassDays > 0) {
+            InetAddress address = player.getAddress().getAddress();
+            trusted.trust(player.getUniqueId(), address, trustedPrefix(address), System.currentTimeMillis() + bypassDays * 24 * 60 * 60 * 1000L);
+        }
+        
+        // Let the other servers behind the proxy honor this login for a while
+        if (share != null && config.getShareMinutes() > 0) {
+            share.publish(player.getUniqueId(), player.getAddress().getAddress().getHostAddress(),
+                    System.currentTimeMillis() + config.getShareMinutes() * 60_000L);
+        }
+        
+        // End the session: cancels the timeout and restores original inventory, removing QR map
+        unfreeze(player);
+        player.sendMessage(Component.text(config.getAuthSuccessMessage()));
+        
+        // Show join message now that authentication is complete using server's default format
+        if (!isVanished(player)) {
+            Component joinMsg = Component.text(config.getJoinMessage(player.getName())).color(net.kyori.adventure.text.format.NamedTextColor.YELLOW);
+            Bukkit.getServer().broadcast(joinMsg);
+        }
+    }
+    
+    private void handleFailedAttempt(Player player, AttemptLimiter.Result failure) {
         String currentIP = player.getAddress().getAddress().getHostAddress();
+        Settings settings = config.settings(); // one snapshot for the whole decision
+        int maxAttempts = settings.maxFailedAttempts();
         
-        if (config.getMaxFailedAttempts() <= 0) {
+        if (maxAttempts <= 0 || failure == null) {
             // Failed attempts tracking disabled, just show simple error
             getLogger().warning("Player " + player.getName() + " (" + currentIP + ") failed 2FA attempt");
+            metrics.failedAttempts.increment();
             showLogin(player, "Wrong code. Please try again.");
             return;
         }
         
-        int currentAttempts = store.getFailedAttempts(id) + 1;
-        store.setFailedAttempts(id, currentAttempts);
+        int currentAttempts = failure.attempts();
+        metrics.failedAttempts.increment();
         
-        getLogger().warning("Player " + player.getName() + " (" + currentIP + ") failed 2FA attempt (" + currentAttempts + "/" + config.getMaxFailedAttempts() + ")");
+        getLogger().warning("Player " + player.getName() + " (" + currentIP + ") failed 2FA attempt (" + currentAttempts + "/" + maxAttempts + ")");
         
-        if (currentAttempts >= config.getMaxFailedAttempts()) {
-            // Ban the player
-            long banDuration = config.getFailedAttemptBanMinutes() * 60 * 1000L; // convert to milliseconds
-            long banExpiry = System.currentTimeMillis() + banDuration;
-            store.setBanExpiry(id, banExpiry);
-            
-            getLogger().warning("Player " + player.getName() + " (" + currentIP + ") banned for " + config.getFailedAttemptBanMinutes() + " minutes due to too many failed attempts");
+        long now = System.currentTimeMillis();
+        if (failure.banned(now)) {
+            // Ban the player (account bans already written by verifyAndPersist, IP bans live in memory)
+            int banMinutes = (int) ((failure.bannedUntil() - now + 59_999) / 60_000);
+            String reason = failure.ipBanStarted() && !failure.accountBanStarted() ? " due to too many failed attempts from their IP" : " due to too many failed attempts";
+            getLogger().warning("Player " + player.getName() + " (" + currentIP + ") banned for " + banMinutes + " minutes" + reason);
+            if (failure.accountBanStarted() || failure.ipBanStarted()) metrics.bans.increment();
             
             unfreeze(player);
-            cancelTimeout(id);
-            player.kick(Component.text(config.getWrongCodeBannedError(config.getFailedAttemptBanMinutes())));
+            player.kick(Component.text(config.getWrongCodeBannedError(banMinutes)));
         } else {
             // Show error with remaining attempts
-            int attemptsLeft = config.getMaxFailedAttempts() - currentAttempts;
+            int attemptsLeft = maxAttempts - currentAttempts;
             showLogin(player, config.getWrongCodeError(attemptsLeft));
         }
     }
     
-    private void handleSuccessfulLogin(Player player) {
-        UUID id = player.getUniqueId();
+    private void handleSuccessfulLogin(Player player, UserRecord before) {
         String currentIP = player.getAddress().getAddress().getHostAddress();
         
-        // Reset failed attempts on successful login
-        store.setFailedAttempts(id, 0);
-        store.setBanExpiry(id, 0);
-        
         // Log successful authentication
-        boolean isRegistration = !store.isEnrolled(id);
+        boolean isRegistration = !before.enrolled();
         if (isRegistration) {
             getLogger().info("Player " + player.getName() + " (" + currentIP + ") completed 2FA registration successfully");
         } else {
@@ -306,22 +674,23 @@ public final class TwoFactorPlugin extends JavaPlugin implements Listener {
         if (player == null) return;
 
         UUID id = player.getUniqueId();
+        AuthSession session = sessions.get(id);
+        if (session == null) return; // stale dialog from a session that already ended
 
         if (key.equals(Dialogs.ACTION_QR_GIVE)) {
             // Give QR map (generated from provisioning URI)
-            String secret = store.getSecret(id);
-            String uri = Totp.provisioningUri(config.getServerName(), player.getName(), secret);
-            ItemStack map = QrMap.make(player, uri);
+            ItemStack map = QrMap.make(player, qrUri(player, session.secret()));
             // Put into first inventory slot (slot 0) - inventory should be empty due to freeze
             player.getInventory().setItem(0, map);
+            session.phase(Phase.SCANNING);
+            session.qrShown(true); // from now on onMove keeps their view locked on the map
             
             player.sendMessage(Component.text(config.getQrReceivedMessage()));
             
             // Use a delayed task to set the view angle after everything is processed
-            final UUID playerId = id;
             final Player finalPlayer = player;
             Bukkit.getScheduler().runTaskLater(this, () -> {
-                if (finalPlayer.isOnline() && frozen.contains(playerId)) {
+                if (finalPlayer.isOnline() && session.isActive()) {
                     Location loc = finalPlayer.getLocation();
                     loc.setPitch(90f); // Look straight down
                     finalPlayer.teleport(loc);
@@ -329,30 +698,28 @@ public final class TwoFactorPlugin extends JavaPlugin implements Listener {
                 }
             }, 3L); // 3 tick delay
             
-            scheduleAsk(player);
+            scheduleAsk(player, session);
             return;
         }
 
         if (key.equals(Dialogs.ACTION_QR_EXIT)) {
             // Player chose to leave during QR setup
             unfreeze(player); // Restore inventory before kicking
-            cancelAsk(id);
-            cancelTimeout(id);
             player.kick(Component.text(config.getLeaveKickMessage()));
             return;
         }
 
         if (key.equals(Dialogs.ACTION_ASK_DONE)) {
-            cancelAsk(id);
-            // Next: OTP + rules
-            freeze(player); // start freezing now so they can't move while logging in
+            session.cancelAsk();
+            // Next: OTP + rules (still frozen, QR map stays in slot 0)
+            session.phase(Phase.LOGIN);
             showLogin(player, null);
             return;
         }
 
         if (key.equals(Dialogs.ACTION_ASK_NOTY)) {
             // Just ask again in 10s
-            scheduleAsk(player);
+            scheduleAsk(player, session);
             return;
         }
 
@@ -362,265 +729,78 @@ public final class TwoFactorPlugin extends JavaPlugin implements Listener {
 
             String otp = rv.getText("otp");
             Boolean rules = rv.getBoolean("rules");
-            String secret = store.getSecret(id);
 
             if (rules == null || !rules) {
                 showLogin(player, config.getMustAgreeRulesError());
                 return;
             }
-            if (!Totp.verify(secret, otp, config.getTimeWindow())) {
-                handleFailedAttempt(player);
-                return;
-            }
-
-            // Success - first time or returning user
-            handleSuccessfulLogin(player);
-            store.setEnrolled(id, true);
-            // Save current IP and login time for future logins
-            String currentIP = player.getAddress().getAddress().getHostAddress();
-            long currentTime = System.currentTimeMillis();
-            store.setLastIP(id, currentIP);
-            store.setLastLoginTime(id, currentTime);
-            
-            // Cancel timeout and cleanup
-            cancelTimeout(id);
-            unfreeze(player); // This restores original inventory, removing QR map
-            player.sendMessage(Component.text(config.getAuthSuccessMessage()));
-            
-            // Show join message now that authentication is complete using server's default format
-            if (!isVanished(player)) {
-                Component joinMsg = Component.text(config.getJoinMessage(player.getName())).color(net.kyori.adventure.text.format.NamedTextColor.YELLOW);
-                Bukkit.getServer().broadcast(joinMsg);
-            }
+            submitLogin(player, session, otp);
             return;
         }
 
-        if (key.equals(Dialogs.ACTION_LOGIN_LEAVE)) {
+        if (key.equals(Dialogs.ACTION_LOGIN_LEAVE) || key.equals(Dialogs.ACTION_QUEUE_LEAVE)) {
             // Player chose to leave the server
             unfreeze(player); // Restore inventory before kicking
-            cancelAsk(id);
-            cancelTimeout(id);
             player.kick(Component.text(config.getLeaveKickMessage()));
         }
     }
 
     /* ------------ Freeze mechanics ------------ */
 
-    private void freeze(Player p) {
-        if (frozen.add(p.getUniqueId())) {
-            // Backup and clear inventory for temporary clean state
-            ItemStack[] contents = p.getInventory().getContents();
-            backupInventories.put(p.getUniqueId(), contents);
-            p.getInventory().clear();
-            
-            // Lock held item slot to slot 0
-            p.getInventory().setHeldItemSlot(0);
-            
-            // Backup current look angles (but don't change view yet)
-            Location loc = p.getLocation();
-            Float[] originalAngles = {loc.getYaw(), loc.getPitch()};
-            backupLookAngles.put(p.getUniqueId(), originalAngles);
-            
-            p.setWalkSpeed(0f);
-            p.setFlySpeed(0f);
-            p.setInvulnerable(true);
-            p.setCollidable(false);
-            p.setFoodLevel(20);
-            // Make player invisible to others
-            p.addPotionEffect(new PotionEffect(PotionEffectType.INVISIBILITY, Integer.MAX_VALUE, 0, false, false));
-            // Hide from other players
-            for (Player other : Bukkit.getOnlinePlayers()) {
-                if (!other.equals(p)) {
-                    other.hidePlayer(this, p);
-                }
-            }
-        }
-    }
-    private void unfreeze(Player p) {
-        if (frozen.remove(p.getUniqueId())) {
-            // Restore original inventory
-            ItemStack[] backup = backupInventories.remove(p.getUniqueId());
-            if (backup != null) {
-                p.getInventory().setContents(backup);
-            }
-            
-            // Restore original look angles
-            Float[] originalAngles = backupLookAngles.remove(p.getUniqueId());
-            if (originalAngles != null) {
-                Location loc = p.getLocation();
-                loc.setYaw(originalAngles[0]);
-                loc.setPitch(originalAngles[1]);
-                p.teleport(loc);
-            }
-            
-            p.setWalkSpeed(0.2f);
-            p.setFlySpeed(0.1f);
-            p.setInvulnerable(false);
-            p.setCollidable(true);
-            // Remove invisibility
-            p.removePotionEffect(PotionEffectType.INVISIBILITY);
-            // Show to other players again
-            for (Player other : Bukkit.getOnlinePlayers()) {
-                if (!other.equals(p)) {
-                    other.showPlayer(this, p);
-                }
-            }
-        }
-    }
-
-    @EventHandler(ignoreCancelled = true)
-    public void onMove(PlayerMoveEvent e) {
-        if (!frozen.contains(e.getPlayer().getUniqueId())) return;
+    private AuthSession freeze(Player p, Phase phase) {
+        AuthSession session = sessions.computeIfAbsent(p.getUniqueId(), AuthSession::new);
+        sessionStarted();
+        session.phase(phase);
+        if (session.isFrozen()) return session;
         
-        // Prevent position movement
-        if (e.getFrom().distanceSquared(e.getTo()) > 0) {
-            e.setTo(e.getFrom()); // "freeze" by snapping back
-        }
-    }
-
-    @EventHandler(ignoreCancelled = true)
-    public void onCommand(PlayerCommandPreprocessEvent e) {
-        if (frozen.contains(e.getPlayer().getUniqueId())) {
-            e.setCancelled(true);
-            e.getPlayer().sendMessage(Component.text(config.getFinishLoginError()));
-        }
-    }
-
-    @EventHandler(ignoreCancelled = true)
-    public void onPlayerTeleport(PlayerTeleportEvent e) {
-        if (frozen.contains(e.getPlayer().getUniqueId())) {
-            e.setCancelled(true);
-        }
-    }
-
-    @EventHandler(ignoreCancelled = true)
-    public void onEntityDamageByEntity(EntityDamageByEntityEvent e) {
-        // Prevent frozen players from being damaged
-        if (e.getEntity() instanceof Player victim && frozen.contains(victim.getUniqueId())) {
-            e.setCancelled(true);
-        }
-        // Prevent frozen players from damaging others
-        if (e.getDamager() instanceof Player attacker && frozen.contains(attacker.getUniqueId())) {
-            e.setCancelled(true);
-        }
-    }
-
-    @EventHandler(ignoreCancelled = true)
-    public void onEntityDamage(EntityDamageEvent e) {
-        // Prevent any damage to frozen players
-        if (e.getEntity() instanceof Player player && frozen.contains(player.getUniqueId())) {
-            e.setCancelled(true);
-        }
-    }
-
-    @EventHandler(ignoreCancelled = true)
-    public void onItemDrop(PlayerDropItemEvent e) {
-        Player p = e.getPlayer();
-        if (frozen.contains(p.getUniqueId())) {
-            ItemStack item = e.getItemDrop().getItemStack();
-            if (item.getItemMeta() != null) {
-                var pdc = item.getItemMeta().getPersistentDataContainer();
-                Byte tag = pdc.get(QR_TAG, PersistentDataType.BYTE);
-                if (tag != null && tag == (byte)1) {
-                    e.setCancelled(true);
-                    p.sendMessage(Component.text(config.getNoDropMapError()));
-                }
-            }
-        }
-    }
-
-    @EventHandler(ignoreCancelled = true)
-    public void onInventoryClick(org.bukkit.event.inventory.InventoryClickEvent e) {
-        if (e.getWhoClicked() instanceof Player p && frozen.contains(p.getUniqueId())) {
-            // Allow viewing the QR map but prevent moving it
-            ItemStack item = e.getCurrentItem();
-            if (item != null && item.getItemMeta() != null) {
-                var pdc = item.getItemMeta().getPersistentDataContainer();
-                Byte tag = pdc.get(QR_TAG, PersistentDataType.BYTE);
-                if (tag != null && tag == (byte)1) {
-                    e.setCancelled(true);
-                }
-            }
-        }
-    }
-
-    @EventHandler(ignoreCancelled = true)
-    public void onPlayerChat(org.bukkit.event.player.AsyncPlayerChatEvent e) {
-        if (frozen.contains(e.getPlayer().getUniqueId())) {
-            e.setCancelled(true);
-            e.getPlayer().sendMessage(Component.text(config.getNoChatError()));
-        }
-    }
-
-    @EventHandler(ignoreCancelled = true)
-    public void onPlayerItemHeld(PlayerItemHeldEvent e) {
-        if (frozen.contains(e.getPlayer().getUniqueId())) {
-            e.setCancelled(true);
-            // Force back to slot 0 if they somehow change
-            if (e.getPlayer().getInventory().getHeldItemSlot() != 0) {
-                e.getPlayer().getInventory().setHeldItemSlot(0);
-            }
-        }
-    }
-
-    @EventHandler(ignoreCancelled = true)
-    public void onBlockBreak(org.bukkit.event.block.BlockBreakEvent e) {
-        if (frozen.contains(e.getPlayer().getUniqueId())) {
-            e.setCancelled(true);
-        }
-    }
-
-    @EventHandler(ignoreCancelled = true)
-    public void onBlockPlace(org.bukkit.event.block.BlockPlaceEvent e) {
-        if (frozen.contains(e.getPlayer().getUniqueId())) {
-            e.setCancelled(true);
-        }
-    }
-
-    @EventHandler(ignoreCancelled = true)
-    public void onPlayerInteract(PlayerInteractEvent e) {
-        if (frozen.contains(e.getPlayer().getUniqueId())) {
-            e.setCancelled(true);
-        }
-    }
-
-    @EventHandler(ignoreCancelled = true)
-    public void onPlayerInteractEntity(PlayerInteractEntityEvent e) {
-        if (frozen.contains(e.getPlayer().getUniqueId())) {
-            e.setCancelled(true);
-        }
-    }
-
-    @EventHandler(ignoreCancelled = true)
-    public void onPlayerToggleSneak(PlayerToggleSneakEvent e) {
-        Player p = e.getPlayer();
-        if (frozen.contains(p.getUniqueId())) {
-            // Check if they have a QR map in slot 0
-            ItemStack item = p.getInventory().getItem(0);
-            if (item != null && item.getItemMeta() != null) {
-                var pdc = item.getItemMeta().getPersistentDataContainer();
-                Byte tag = pdc.get(QR_TAG, PersistentDataType.BYTE);
-                if (tag != null && tag == (byte)1) {
-                    e.setCancelled(true);
-                }
-            }
-        }
+        // Backup inventory and current look angles (but don't change view yet)
+        Location loc = p.getLocation();
+        session.backup(p.getInventory().getContents(), loc.getYaw(), loc.getPitch());
+        
+        // Clear inventory for temporary clean state
+        p.getInventory().clear();
+        
+        // Lock held item slot to slot 0
+        p.getInventory().setHeldItemSlot(0);
+        
+        p.setWalkSpeed(0f);
+        p.setFlySpeed(0f);
+        p.setInvulnerable(true);
+        p.setCollidable(false);
+        p.setFoodLevel(20);
+        // Make player invisible to others
+        p.addPotionEffect(new PotionEffect(PotionEffectType.INVISIBILITY, Integer.MAX_VALUE, 0, false, false));
+        // Hide from other players (applied at the end of the tick)
+        visibility.hide(p);
+        return session;
     }
+    private void unfreeze(Player p) {
+        AuthSession session = sessions.remove(p.getUniqueId());
+        if (session == null) return;
+        session.end(); // cancels the ask prompt and timeout
+        sessionEnded();
+        if (!session.isFrozen()) return; // queued players were never changed
 
-    @EventHandler(ignoreCancelled = true)
-    public void onPlayerJump(PlayerJumpEvent e) {
-        Player p = e.getPlayer();
-        if (frozen.contains(p.getUniqueId())) {
-            // Check if they have a QR map in slot 0
-            ItemStack item = p.getInventory().getItem(0);
-            if (item != null && item.getItemMeta() != null) {
-                var pdc = item.getItemMeta().getPersistentDataContainer();
-                Byte tag = pdc.get(QR_TAG, PersistentDataType.BYTE);
-                if (tag != null && tag == (byte)1) {
-                    e.setCancelled(true);
-                }
-            }
+        // Restore original inventory
+        if (session.inventory() != null) {
+            p.getInventory().setContents(session.inventory());
         }
+        
+        // Restore original look angles
+        Location loc = p.getLocation();
+        loc.setYaw(session.yaw());
+        loc.setPitch(session.pitch());
+        p.teleport(loc);
+        
+        p.setWalkSpeed(0.2f);
+        p.setFlySpeed(0.1f);
+        p.setInvulnerable(false);
+        p.setCollidable(true);
+        // Remove invisibility
+        p.removePotionEffect(PotionEffectType.INVISIBILITY);
+        // Show to other players again, and hide anyone still authenticating from them
+        visibility.show(p);
+        visibility.viewerReady(p);
     }
 
     /* ------------ Commands ------------ */
@@ -653,6 +833,150 @@ public final class TwoFactorPlugin extends JavaPlugin implements Listener {
             return true;
         }
         
+        if (subcommand.equals("sessions")) {
+            // Diagnostics: players currently in 2FA, by phase, and how long joins wait for admission
+            int[] byPhase = new int[Phase.values().length];
+            long bytes = 0;
+            for (AuthSession session : sessions.values()) {
+                byPhase[session.phase().ordinal()]++;
+                bytes += session.estimatedBytes();
+            }
+            sender.sendMessage(Component.text(config.getSessionsMessage(sessions.size(), byPhase[Phase.SCAN_PROMPT.ordinal()],
+                    byPhase[Phase.SCANNING.ordinal()], byPhase[Phase.LOGIN.ordinal()], (bytes + 1023) / 1024)));
+            Waiting oldest = admissionQueue.peek();
+            long oldestWait = oldest == null ? 0 : (System.currentTimeMillis() - oldest.session().createdAt()) / 1000;
+            long avgWait = admittedCount == 0 ? 0 : admittedWaitMs / admittedCount;
+            sender.sendMessage(Component.text(config.getAdmissionQueueMessage(byPhase[Phase.QUEUED.ordinal()], oldestWait, avgWait)));
+            sender.sendMessage(Component.text(config.getDialogCacheMessage(Dialogs.cacheHits(), Dialogs.cacheMisses())));
+            return true;
+        }
+        
+        if (subcommand.equals("stats")) {
+            // Counters and gauges since startup, then latency percentiles in milliseconds
+            sender.sendMessage(Component.text(config.getStatsHeaderMessage()));
+            metrics.counters().forEach((name, value) -> sender.sendMessage(Component.text(config.getStatsValueMessage(name, value.sum()))));
+            metrics.sampleGauges().forEach((name, value) -> sender.sendMessage(Component.text(config.getStatsValueMessage(name, value))));
+            for (Map.Entry<String, Histogram> h : metrics.histograms().entrySet()) {
+                Histogram hist = h.getValue();
+                sender.sendMessage(Component.text(config.getStatsLatencyMessage(h.getKey(), hist.count(),
+                        millis(hist.quantile(0.5)), millis(hist.quantile(0.99)), millis(hist.max()))));
+            }
+            return true;
+        }
+        
+        if (subcommand.equals("trust") || subcommand.equals("untrust")) {
+            if (args.length < (subcommand.equals("trust") ? 3 : 2)) {
+                sender.sendMessage(Component.text(config.getUsageMessage()));
+                return true;
+            }
+            
+            OfflinePlayer targetPlayer = Bukkit.getOfflinePlayer(args[1]);
+            if (!targetPlayer.hasPlayedBefore() && !targetPlayer.isOnline()) {
+                sender.sendMessage(Component.text(config.getPlayerNotFoundMessage(args[1])));
+                return true;
+            }
+            
+            if (subcommand.equals("untrust")) {
+                UUID id = targetPlayer.getUniqueId();
+                String name = targetPlayer.getName();
+                trusted.forget(id);
+                // Also end the last-IP fallback (it would trust the network again on the next join) and shared
+                // sessions; storage is never touched on the server thread
+                Consumer<String> reply = replyLater(sender);
+                authExecutor.execute(() -> {
+                    try {
+                        if (store.load(id).lastIp() != null) store.update(id, r -> r.withLastIp(null));
+                        if (share != null) share.revoke(id);
+                        reply.accept(config.getUntrustedMessage(name));
+                    } catch (RuntimeException ex) {
+                        reply.accept(config.getStorageErrorMessage(name, ex.getMessage()));
+                    }
+                });
+                return true;
+            }
+            
+            int days = config.getIpBypassDays();
+            TrustedSessions.Network network;
+            try {
+                network = TrustedSessions.parse(args[2], System.currentTimeMillis() + days * 24 * 60 * 60 * 1000L);
+            } catch (IllegalArgumentException e) {
+                sender.sendMessage(Component.text(config.getInvalidCidrMessage(args[2])));
+                return true;
+            }
+            trusted.trust(targetPlayer.getUniqueId(), network);
+            sender.sendMessage(Component.text(config.getTrustedMessage(targetPlayer.getName(), network.cidr(), days)));
+            return true;
+        }
+        
+        if (subcommand.equals("migrate")) {
+            if (args.length < 3) {
+                sender.sendMessage(Component.text(config.getUsageMessage()));
+                return true;
+            }
+            String from = storageType(args[1]);
+            String to = storageType(args[2]);
+            String active = storeType;
+            if (!from.equals(active)) {
+                sender.sendMessage(Component.text(config.getMigrateNotActiveMessage(args[1], active)));
+                return true;
+            }
+            if (to.equals(from)) {
+                sender.sendMessage(Component.text(config.getUsageMessage()));
+                return true;
+            }
+            boolean started = bulk.migrate(from, to, type -> new InstrumentedUserStore(openStore(type), metrics),
+                    next -> store = next, () -> {
+                        storeType = to;
+                        persistStorageType(to);
+                    }, replyLater(sender));
+            if (!started) sender.sendMessage(Component.text(config.getBulkBusyMessage(String.valueOf(bulk.running()))));
+            return true;
+        }
+        
+        if (subcommand.equals("purge") || subcommand.equals("export") || subcommand.equals("import")) {
+            if (args.length < 2) {
+                sender.sendMessage(Component.text(config.getUsageMessage()));
+                return true;
+            }
+            Consumer<String> reply = replyLater(sender);
+            boolean started;
+            if (subcommand.equals("purge")) {
+                int days;
+                try {
+                    days = Integer.parseInt(args[1]);
+                } catch (NumberFormatException e) {
+                    days = 0;
+                }
+                if (days <= 0) {
+                    sender.sendMessage(Component.text(config.getUsageMessage()));
+                    return true;
+                }
+                // Players online or logging in at the moment their record would be removed keep their data
+                started = bulk.purge(days, id -> online.contains(id) || sessions.containsKey(id) || prefetched.containsKey(id),
+                        removed -> removed.forEach(id -> {
+                            trusted.forget(id);
+                            limiter.clear(id);
+                            if (share != null) share.revoke(id);
+                        }), reply);
+            } else if (subcommand.equals("export")) {
+                String format = args[1].toLowerCase(Locale.ROOT);
+                if (!format.equals("csv") && !format.equals("json")) {
+                    sender.sendMessage(Component.text(config.getUsageMessage()));
+                    return true;
+                }
+                started = bulk.export(format, reply);
+            } else {
+                Path file = bulk.resolveImport(args[1]);
+                if (file == null) {
+                    sender.sendMessage(Component.text(config.getImportNotFoundMessage(args[1])));
+                    return true;
+                }
+                started = bulk.importFile(file, reply);
+            }
+            if (!started) sender.sendMessage(Component.text(config.getBulkBusyMessage(String.valueOf(bulk.running()))));
+            return true;
+        }
+        
         if (subcommand.equals("remove")) {
             if (args.length < 2) {
                 sender.sendMessage(Component.text(config.getUsageMessage()));
@@ -668,15 +992,29 @@ public final class TwoFactorPlugin extends JavaPlugin implements Listener {
                 return true;
             }
             
-            // Remove all 2FA data for the player
-            store.removeUser(targetPlayer.getUniqueId());
-            sender.sendMessage(Component.text(config.getPlayerResetMessage(targetPlayer.getName())));
-            
-            // If player is online, kick them to apply changes
-            if (targetPlayer.isOnline()) {
-                Player onlinePlayer = (Player) targetPlayer;
-                onlinePlayer.kick(Component.text(config.getAdminResetKickMessage()));
-            }
+            // Remove all 2FA data for the player, off the server thread
+            UUID id = targetPlayer.getUniqueId();
+            String name = targetPlayer.getName();
+            Consumer<String> reply = replyLater(sender);
+            authExecutor.execute(() -> {
+                try {
+                    store.removeUser(id);
+                } catch (RuntimeException ex) {
+                    reply.accept(config.getStorageErrorMessage(name, ex.getMessage()));
+                    return;
+                }
+                trusted.forget(id);
+                if (share != null) share.revoke(id);
+                limiter.clear(id);
+                reply.accept(config.getPlayerResetMessage(name));
+                
+                // If player is online, kick them to apply changes
+                if (!isEnabled()) return;
+                Bukkit.getScheduler().runTask(this, () -> {
+                    Player onlinePlayer = Bukkit.getPlayer(id);
+                    if (onlinePlayer != null) onlinePlayer.kick(Component.text(config.getAdminResetKickMessage()));
+                });
+            });
             
             return true;
         } else {
@@ -687,6 +1025,43 @@ public final class TwoFactorPlugin extends JavaPlugin implements Listener {
 
     /* ------------ Utilities ------------ */
 
+    private int trustedPrefix(InetAddress address) {
+        return address.getAddress().length == 4 ? config.getTrustedIpv4Prefix() : config.getTrustedIpv6Prefix();
+    }
+
+    private static String storageType(String type) {
+        String t = type.toLowerCase(Locale.ROOT);
+        return t.equals("mariadb") ? "mysql" : t;
+    }
+
+    // After a migration the new backend is already live; this makes the next start open it too
+    private void persistStorageType(String type) {
+        if (!isEnabled()) {
+            getLogger().warning("Storage migrated to " + type + " during shutdown; set storage.type to " + type + " in config.yml");
+            return;
+        }
+        Bukkit.getScheduler().runTask(this, () -> {
+            getConfig().set("storage.type", type);
+            saveConfig();
+            config.loadConfig();
+        });
+    }
+
+    // Messages from background jobs, delivered on the server thread while the plugin is still enabled
+    private Consumer<String> replyLater(CommandSender sender) {
+        return msg -> {
+            if (isEnabled()) Bukkit.getScheduler().runTask(this, () -> sender.sendMessage(Component.text(msg)));
+        };
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1_000_000.0);
+    }
+
+    private String qrUri(Player p, String secret) {
+        return Totp.provisioningUri(config.getServerName(), p.getName(), secret);
+    }
+
     private boolean isVanished(Player player) {
         for (MetadataValue meta : player.getMetadata("vanished")) {
             if (meta.asBoolean()) return true;
@@ -0,0 +1,452 @@
+package com.forkthus.twofadialog.admin;
+
+import com.forkthus.twofadialog.config.ConfigManager;
+import com.forkthus.twofadialog.storage.UserRecord;
+import com.forkthus.twofadialog.storage.UserStore;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Purge, export, import and migration over every stored user, one job at a time on a background thread.
+ * Users are read BATCH at a time with loadAll and changed with one saveAll/removeAll per batch,
+ * so a job never holds the whole user base in memory or rewrites the store once per user.
+ * Progress goes back to the command sender every few seconds.
+ */
+public final class BulkJobs {
+    static final int BATCH = 500;
+    private static final long REPORT_EVERY_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final String CSV_HEADER = "uuid,secret,enrolled,last_ip,last_login,failed_attempts,ban_expiry";
+
+    private final Supplier<UserStore> store;
+    private final ConfigManager config;
+    private final File dataFolder;
+    private final Logger logger;
+    private final AtomicReference<String> running = new AtomicReference<>(); // name of the running job, null when idle
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "TwoFADialog-Bulk");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public BulkJobs(Supplier<UserStore> store, ConfigManager config, File dataFolder, Logger logger) {
+        this.store = store;
+        this.config = config;
+        this.dataFolder = dataFolder;
+        this.logger = logger;
+    }
+
+    // Name of the job in progress, or null
+    public String running() {
+        return running.get();
+    }
+
+    // Removes users whose last login is older than the given days. Users matched by protect (online or mid-login)
+    // and users with an active ban are kept; removed ids are passed to onRemoved so in-memory state can follow.
+    // Both are tested again by the store at the moment each user is removed, not only when the batch was read.
+    public boolean purge(int days, Predicate<UUID> protect, Consumer<Collection<UUID>> onRemoved, Consumer<String> out) {
+        return start("purge", out, () -> {
+            long start = System.nanoTime();
+            long now = System.currentTimeMillis();
+            long cutoff = now - TimeUnit.DAYS.toMillis(days);
+            BiPredicate<UUID, UserRecord> stale = (id, r) -> r.lastLogin() < cutoff && r.banExpiry() <= now && !protect.test(id);
+            long[] removed = new long[1];
+            int total = scan("purge", out, (s, ids, records) -> {
+                List<UUID> candidates = new ArrayList<>();
+                for (UUID id : ids) {
+                    if (stale.test(id, records.get(id))) candidates.add(id);
+                }
+                if (candidates.isEmpty()) return;
+                List<UUID> gone = s.removeAllIf(candidates, stale);
+                if (gone.isEmpty()) return;
+                onRemoved.accept(gone);
+                removed[0] += gone.size();
+            });
+            store.get().save();
+            done(out, config.getPurgeDoneMessage(removed[0], total, days, seconds(start)));
+        });
+    }
+
+    // Writes every user to exports/users-<time>.<csv|json>, readable by the owner only where the filesystem allows
+    public boolean export(String format, Consumer<String> out) {
+        return start("export", out, () -> {
+            long start = System.nanoTime();
+            boolean json = format.equals("json");
+            Path dir = new File(dataFolder, "exports").toPath();
+            Files.createDirectories(dir);
+            String name = "users-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + "." + format;
+            Path target = dir.resolve(name);
+            Path tmp = dir.resolve(name + ".tmp");
+            createPrivate(tmp);
+            long[] count = new long[1];
+            try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                w.write(json ? "[" : CSV_HEADER + "\n");
+                scan("export", out, (s, ids, records) -> {
+                    for (UUID id : ids) {
+                        UserRecord r = records.get(id);
+                        if (json) writeJson(w, id, r, count[0] == 0);
+                        else writeCsv(w, id, r);
+                        count[0]++;
+                    }
+                });
+                w.write(json ? "\n]\n" : "");
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(tmp);
+                throw e;
+            }
+            move(tmp, target);
+            done(out, config.getExportDoneMessage(count[0], "exports/" + name, seconds(start)));
+        });
+    }
+
+    // Imports secrets from a CSV (header with uuid and secret columns, e.g. an export) or YAML file (uuid: secret,
+    // or uuid sections with a secret key, e.g. another server's users.yml). Users that already have a secret are skipped.
+    public boolean importFile(Path file, Consumer<String> out) {
+        return start("import", out, () -> {
+            long start = System.nanoTime();
+            String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+            Importer importer = new Importer(out);
+            if (name.endsWith(".yml") || name.endsWith(".yaml")) importYaml(file, importer);
+            else importCsv(file, importer);
+            importer.finish();
+            done(out, config.getImportDoneMessage(importer.imported, importer.skipped, importer.invalid, seconds(start)));
+        });
+    }
+
+    // Moves every user from the active store into another backend while the server keeps running (see StoreMigration).
+    // install replaces the live store; onSwitched runs once the new backend is live and should persist storage.type.
+    public boolean migrate(String from, String to, StoreOpener opener, Consumer<UserStore> install, Runnable onSwitched,
+                           Consumer<String> out) {
+        StoreMigration migration = new StoreMigration(from, to, opener, store, install, onSwitched,
+                config, dataFolder, logger, out);
+        return start("migrate", out, migration::run);
+    }
+
+    public interface StoreOpener {
+        UserStore open(String type) throws IOException;
+    }
+
+    // A file inside the plugin folder, or null for anything else (paths may not climb out of it)
+    public Path resolveImport(String name) {
+        Path root = dataFolder.toPath().toAbsolutePath().normalize();
+        Path file = root.resolve(name).normalize();
+        return file.startsWith(root) && Files.isRegularFile(file) ? file : null;
+    }
+
+    // Stops a running job between batches
+    public void close() {
+        worker.shutdownNow();
+        try {
+            worker.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* ------------ Jobs ------------ */
+
+    private interface Job {
+        void run() throws Exception;
+    }
+
+    private interface BatchHandler {
+        void handle(UserStore store, List<UUID> ids, Map<UUID, UserRecord> records) throws IOException;
+    }
+
+    private boolean start(String name, Consumer<String> out, Job job) {
+        if (!running.compareAndSet(null, name)) return false;
+        try {
+            worker.execute(() -> {
+                try {
+                    job.run();
+                } catch (InterruptedException e) {
+                    logger.warning("2FA " + name + " stopped by shutdown");
+                } catch (Exception e) {
+                    logger.warning("2FA " + name + " failed: " + e);
+                    out.accept(config.getBulkFailedMessage(name, String.valueOf(e.getMessage())));
+                } finally {
+                    running.set(null);
+                }
+            });
+        } catch (RejectedExecutionException shuttingDown) {
+            running.set(null);
+            return false;
+        }
+        return true;
+    }
+
+    // Feeds every stored user to the handler, BATCH at a time in UUID order; returns the number of users
+    private int scan(String name, Consumer<String> out, BatchHandler handler) throws IOException, InterruptedException {
+        UserStore s = store.get();
+        UUID[] all = s.ids().toArray(new UUID[0]);
+        Arrays.sort(all);
+        out.accept(config.getBulkStartedMessage(name, all.length));
+        Progress progress = new Progress(config, name, out, all.length);
+        List<UUID> ids = Arrays.asList(all);
+        for (int from = 0; from < all.length; from += BATCH) {
+            if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+            List<UUID> batch = ids.subList(from, Math.min(all.length, from + BATCH));
+            handler.handle(s, batch, s.loadAll(batch));
+            progress.advance(batch.size());
+        }
+        return all.length;
+    }
+
+    private void done(Consumer<String> out, String message) {
+        logger.info(message);
+        out.accept(message);
+    }
+
+    // Rate and time left, sent at most every REPORT_EVERY_NANOS
+    static final class Progress {
+        private final ConfigManager config;
+        private final String name;
+        private final Consumer<String> out;
+        private final long total;
+        private final long start = System.nanoTime();
+        private long lastReport = start;
+        private long done;
+
+        Progress(ConfigManager config, String name, Consumer<String> out, long total) {
+            this.config = config;
+            this.name = name;
+            this.out = out;
+            this.total = total;
+        }
+
+        void advance(int n) {
+            done += n;
+            long now = System.nanoTime();
+            if (now - lastReport < REPORT_EVERY_NANOS || done >= total) return;
+            lastReport = now;
+            long rate = done * 1_000_000_000L / Math.max(1, now - start);
+            long eta = rate == 0 ? 0 : (total - done) / rate;
+            out.accept(config.getBulkProgressMessage(name, done, total, rate, eta));
+        }
+    }
+
+    /* ------------ Import ------------ */
+
+    // Collects parsed users into batches; each batch is one saveAllIfAbsent, so a player enrolling mid-import keeps their secret
+    private final class Importer {
+        private final Map<UUID, UserRecord> batch = new LinkedHashMap<>();
+        private final Consumer<String> out;
+        private Progress progress;
+        long imported, skipped, invalid;
+
+        Importer(Consumer<String> out) {
+            this.out = out;
+        }
+
+        void begin(long total) {
+            out.accept(config.getBulkStartedMessage("import", total));
+            progress = new Progress(config, "import", out, total);
+        }
+
+        void add(String uuid, String secret, UserRecord fields) throws InterruptedException {
+            UUID id;
+            try {
+                id = UUID.fromString(uuid.trim());
+            } catch (IllegalArgumentException e) {
+                invalid++;
+                return;
+            }
+            String key = secret == null ? "" : secret.replace(" ", "").replace("=", "").toUpperCase(Locale.ROOT);
+            if (!key.matches("[A-Z2-7]{16,}")) {
+                invalid++;
+                return;
+            }
+            UserRecord record = fields.withSecret(key);
+            if (!store.get().accepts(record)) { // e.g. a secret too long for users.packed
+                invalid++;
+                return;
+            }
+            batch.put(id, record);
+            if (batch.size() >= BATCH) flushBatch();
+        }
+
+        void finish() throws InterruptedException {
+            if (!batch.isEmpty()) flushBatch();
+            store.get().save();
+        }
+
+        private void flushBatch() throws InterruptedException {
+            if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+            int written = store.get().saveAllIfAbsent(batch);
+            imported += written;
+            skipped += batch.size() - written;
+            progress.advance(batch.size());
+            batch.clear();
+        }
+    }
+
+    private void importCsv(Path file, Importer importer) throws IOException, InterruptedException {
+        long lines;
+        try (var stream = Files.lines(file, StandardCharsets.UTF_8)) {
+            lines = stream.filter(l -> !l.isBlank()).count();
+        }
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String header = in.readLine();
+            if (header == null) throw new IOException("empty file");
+            List<String> columns = new ArrayList<>();
+            for (String c : splitCsv(header)) columns.add(c.trim().toLowerCase(Locale.ROOT));
+            int uuid = columns.indexOf("uuid");
+            int secret = columns.indexOf("secret") >= 0 ? columns.indexOf("secret") : columns.indexOf("key");
+            if (uuid < 0 || secret < 0) throw new IOException("the first line needs uuid and secret columns");
+            int enrolled = columns.indexOf("enrolled"), lastIp = columns.indexOf("last_ip"), lastLogin = columns.indexOf("last_login");
+            int failed = columns.indexOf("failed_attempts"), ban = columns.indexOf("ban_expiry");
+            importer.begin(Math.max(0, lines - 1));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isBlank()) continue;
+                List<String> f = splitCsv(line);
+                try {
+                    importer.add(column(f, uuid), column(f, secret), new UserRecord(null,
+                            enrolled < 0 || column(f, enrolled).isEmpty() || Boolean.parseBoolean(column(f, enrolled)),
+                            emptyToNull(column(f, lastIp)), parseLong(column(f, lastLogin)),
+                            (int) parseLong(column(f, failed)), parseLong(column(f, ban))));
+                } catch (NumberFormatException e) {
+                    importer.invalid++;
+                }
+            }
+        }
+    }
+
+    private void importYaml(Path file, Importer importer) throws IOException, InterruptedException {
+        YamlConfiguration yaml = YamlConfiguration.loadConfiguration(file.toFile());
+        ConfigurationSection users = yaml.isConfigurationSection("users") ? yaml.getConfigurationSection("users") : yaml;
+        importer.begin(users.getKeys(false).size());
+        for (String key : users.getKeys(false)) {
+            ConfigurationSection user = users.getConfigurationSection(key);
+            if (user == null) {
+                importer.add(key, users.getString(key), new UserRecord(null, true, null, 0, 0, 0));
+                continue;
+            }
+            // Same keys as users.yml
+            importer.add(key, user.getString("secret", user.getString("key")), new UserRecord(null,
+                    user.getBoolean("enrolled", true), user.getString("lastip"), user.getLong("lastlogin", 0),
+                    user.getInt("failedattempts", 0), user.getLong("banexpiry", 0)));
+        }
+    }
+
+    /* ------------ Formats ------------ */
+
+    private static void writeCsv(Writer w, UUID id, UserRecord r) throws IOException {
+        w.write(id + "," + csv(r.secret()) + "," + r.enrolled() + "," + csv(r.lastIp()) + "," + r.lastLogin()
+                + "," + r.failedAttempts() + "," + r.banExpiry() + "\n");
+    }
+
+    private static void writeJson(Writer w, UUID id, UserRecord r, boolean first) throws IOException {
+        w.write((first ? "\n" : ",\n") + "  {\"uuid\":\"" + id + "\",\"secret\":" + json(r.secret())
+                + ",\"enrolled\":" + r.enrolled() + ",\"last_ip\":" + json(r.lastIp()) + ",\"last_login\":" + r.lastLogin()
+                + ",\"failed_attempts\":" + r.failedAttempts() + ",\"ban_expiry\":" + r.banExpiry() + "}");
+    }
+
+    private static String csv(String v) {
+        if (v == null) return "";
+        if (v.indexOf(',') < 0 && v.indexOf('"') < 0 && v.indexOf('\n') < 0) return v;
+        return "\"" + v.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String json(String v) {
+        if (v == null) return "null";
+        StringBuilder sb = new StringBuilder(v.length() + 2).append('"');
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    // One CSV line; handles quoted fields with "" escapes
+    private static List<String> splitCsv(String line) {
+        List<String> out = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') field.append(c);
+                else if (i + 1 < line.length() && line.charAt(i + 1) == '"') { field.append('"'); i++; }
+                else quoted = false;
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                out.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        out.add(field.toString());
+        return out;
+    }
+
+    private static String column(List<String> fields, int i) {
+        return i < 0 || i >= fields.size() ? "" : fields.get(i).trim();
+    }
+
+    private static String emptyToNull(String v) {
+        return v.isEmpty() ? null : v;
+    }
+
+    private static long parseLong(String v) {
+        return v.isEmpty() ? 0 : Long.parseLong(v);
+    }
+
+    /* ------------ Files ------------ */
+
+    // Exports hold every secret key
+    private static void createPrivate(Path file) throws IOException {
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(file);
+        }
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static String seconds(long startNanos) {
+        return String.format(Locale.ROOT, "%.1f", (System.nanoTime() - startNanos) / 1_000_000_000.0);
+    }
+}
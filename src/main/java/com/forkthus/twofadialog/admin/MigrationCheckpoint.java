@@ -0,0 +1,74 @@
+package com.forkthus.twofadialog.admin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * The last UUID a storage migration copied, in migrate.checkpoint. Only a run between the same two
+ * backends resumes from it; any other migration starts over.
+ */
+final class MigrationCheckpoint {
+    private final Path file;
+    private final String from;
+    private final String to;
+
+    MigrationCheckpoint(File dataFolder, String from, String to) {
+        this.file = new File(dataFolder, "migrate.checkpoint").toPath();
+        this.from = from;
+        this.to = to;
+    }
+
+    // Last copied UUID of an earlier run of the same migration, or null
+    UUID read() throws IOException {
+        Properties p = new Properties();
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            p.load(in);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!from.equals(p.getProperty("from")) || !to.equals(p.getProperty("to"))) return null;
+        try {
+            return UUID.fromString(p.getProperty("last", ""));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    void write(UUID last) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("from", from);
+        p.setProperty("to", to);
+        p.setProperty("last", last.toString());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            p.store(w, "2FA storage migration progress, delete to start over");
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    // Index of the first of the sorted ids after last, which need not be among them any more (null = 0)
+    static int resumeIndex(UUID[] sorted, UUID last) {
+        if (last == null) return 0;
+        int i = Arrays.binarySearch(sorted, last);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+}
@@ -0,0 +1,124 @@
+package com.forkthus.twofadialog.admin;
+
+import com.forkthus.twofadialog.config.ConfigManager;
+import com.forkthus.twofadialog.storage.DualWriteUserStore;
+import com.forkthus.twofadialog.storage.UserStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Copies every user from the active store into another backend without downtime.
+ * A {@link DualWriteUserStore} becomes the live store so new writes reach both backends, then users are copied
+ * BATCH at a time in UUID order. The last copied UUID is checkpointed after each batch, so running the same
+ * migration again after a restart picks up there. A verify pass compares both stores and repairs whatever drifted
+ * (including changes made while the migration was interrupted), the user counts must match, users whose mirrored
+ * write failed after their verify batch are checked once more, and only then is the new store installed.
+ */
+final class StoreMigration {
+    private final String from;
+    private final String to;
+    private final BulkJobs.StoreOpener opener;
+    private final Supplier<UserStore> live;
+    private final Consumer<UserStore> install;
+    private final Runnable onSwitched;
+    private final ConfigManager config;
+    private final MigrationCheckpoint checkpoint;
+    private final Logger logger;
+    private final Consumer<String> out;
+
+    StoreMigration(String from, String to, BulkJobs.StoreOpener opener, Supplier<UserStore> live, Consumer<UserStore> install,
+                   Runnable onSwitched, ConfigManager config, File dataFolder, Logger logger, Consumer<String> out) {
+        this.from = from;
+        this.to = to;
+        this.opener = opener;
+        this.live = live;
+        this.install = install;
+        this.onSwitched = onSwitched;
+        this.config = config;
+        this.checkpoint = new MigrationCheckpoint(dataFolder, from, to);
+        this.logger = logger;
+        this.out = out;
+    }
+
+    void run() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        UserStore current = live.get();
+        UserStore next = opener.open(to);
+        DualWriteUserStore dual = new DualWriteUserStore(current, next, logger);
+        install.accept(dual);
+        boolean switched = false;
+        try {
+            // Copy, resuming after the checkpointed UUID
+            UUID[] all = sorted(dual.ids());
+            UUID resumeAfter = checkpoint.read();
+            int first = MigrationCheckpoint.resumeIndex(all, resumeAfter);
+            if (resumeAfter != null) out.accept(config.getMigrateResumedMessage(from, to, first));
+            out.accept(config.getBulkStartedMessage("migrate", all.length - first));
+            BulkJobs.Progress progress = new BulkJobs.Progress(config, "migrate", out, all.length - first);
+            List<UUID> ids = Arrays.asList(all);
+            for (int i = first; i < all.length; i += BulkJobs.BATCH) {
+                if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+                List<UUID> batch = ids.subList(i, Math.min(all.length, i + BulkJobs.BATCH));
+                dual.copy(batch);
+                checkpoint.write(batch.get(batch.size() - 1));
+                progress.advance(batch.size());
+            }
+
+            // Verify against a fresh snapshot, which includes users created during the copy
+            all = sorted(dual.ids());
+            out.accept(config.getBulkStartedMessage("verify", all.length));
+            progress = new BulkJobs.Progress(config, "verify", out, all.length);
+            ids = Arrays.asList(all);
+            long repaired = 0, checksum = 0;
+            for (int i = 0; i < all.length; i += BulkJobs.BATCH) {
+                if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+                DualWriteUserStore.Verified v = dual.verify(ids.subList(i, Math.min(all.length, i + BulkJobs.BATCH)));
+                repaired += v.repaired();
+                checksum += v.checksum();
+                progress.advance(Math.min(BulkJobs.BATCH, all.length - i));
+            }
+            long[] counts = dual.reconcile();
+            if (counts[0] != counts[1]) {
+                throw new IllegalStateException(from + " has " + counts[0] + " users but " + to + " has " + counts[1]);
+            }
+
+            // Switch: retire first so calls still holding the dual store go to the new one, then install it
+            next.save();
+            repaired += dual.retire();
+            install.accept(next);
+            switched = true;
+            current.close();
+            checkpoint.delete();
+            onSwitched.run();
+            if (dual.mirrorFailures() > 0) {
+                logger.warning(dual.mirrorFailures() + " mirrored writes failed during the migration; the affected users were verified again before the switch");
+            }
+            String done = config.getMigrateDoneMessage(from, to, counts[0], repaired,
+                    String.format(Locale.ROOT, "%016x", checksum), BulkJobs.seconds(start));
+            logger.info(done);
+            out.accept(done);
+        } finally {
+            if (!switched) {
+                // Back to the old store alone; the checkpoint stays so the next run resumes
+                install.accept(current);
+                dual.drain();
+                next.close();
+            }
+        }
+    }
+
+    private static UUID[] sorted(Collection<UUID> ids) {
+        UUID[] out = ids.toArray(new UUID[0]);
+        Arrays.sort(out);
+        return out;
+    }
+}
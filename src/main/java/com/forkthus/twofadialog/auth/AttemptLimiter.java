@@ -0,0 +1,96 @@
+package com.forkthus.twofadialog.auth;
+
+import com.forkthus.twofadialog.config.Settings;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Failed 2FA attempts in a sliding window, per account and per source IP, kept in memory only.
+ * Each key's window is an immutable state swapped with compare-and-set, so verify threads never block each other.
+ * Callers persist an account ban when {@link Result#accountBanStarted()}; nothing else reaches the store.
+ */
+public final class AttemptLimiter {
+    // Failure times inside the window, oldest first; failures are not counted while banned
+    private record Window(long[] failures, long bannedUntil) {
+        static final Window EMPTY = new Window(new long[0], 0);
+
+        boolean stale(long now, long windowMs) {
+            return bannedUntil <= now && (failures.length == 0 || failures[failures.length - 1] <= now - windowMs);
+        }
+    }
+
+    // attempts: the account's failures in the window (equal to the limit when this one banned it)
+    public record Result(int attempts, long bannedUntil, boolean accountBanStarted, boolean ipBanStarted) {
+        public boolean banned(long now) { return bannedUntil > now; }
+    }
+
+    private final Map<UUID, AtomicReference<Window>> accounts = new ConcurrentHashMap<>();
+    private final Map<String, AtomicReference<Window>> ips = new ConcurrentHashMap<>();
+
+    // Latest ban end for this account or IP, or 0 when neither is banned
+    public long bannedUntil(UUID id, String ip, long now) {
+        long until = Math.max(until(accounts.get(id)), until(ips.get(ip)));
+        return until > now ? until : 0;
+    }
+
+    public Result recordFailure(UUID id, String ip, long now, Settings s) {
+        long windowMs = s.failedAttemptWindowMinutes() * 60_000L;
+        long banMs = s.failedAttemptBanMinutes() * 60_000L;
+        long accountBefore = until(accounts.get(id)), ipBefore = until(ips.get(ip));
+        Window account = fail(accounts, id, now, windowMs, s.maxFailedAttempts(), banMs);
+        Window source = fail(ips, ip, now, windowMs, s.maxFailedAttemptsPerIp(), banMs);
+        boolean accountBanStarted = account.bannedUntil() > now && accountBefore <= now;
+        boolean ipBanStarted = source.bannedUntil() > now && ipBefore <= now;
+        int attempts = account.bannedUntil() > now ? s.maxFailedAttempts() : account.failures().length;
+        return new Result(attempts, Math.max(account.bannedUntil(), source.bannedUntil()), accountBanStarted, ipBanStarted);
+    }
+
+    // Successful login or admin reset: the account starts over (its IP's count stays)
+    public void clear(UUID id) {
+        accounts.remove(id);
+    }
+
+    // Drops windows with nothing left in them; safe to run alongside recordFailure
+    public void prune(long now, long windowMs) {
+        prune(accounts, now, windowMs);
+        prune(ips, now, windowMs);
+    }
+
+    public int size() {
+        return accounts.size() + ips.size();
+    }
+
+    private static <K> Window fail(Map<K, AtomicReference<Window>> map, K key, long now, long windowMs, int max, long banMs) {
+        if (max <= 0) return Window.EMPTY; // this limit is disabled
+        while (true) {
+            AtomicReference<Window> ref = map.computeIfAbsent(key, k -> new AtomicReference<>(Window.EMPTY));
+            Window cur, next;
+            do {
+                cur = ref.get();
+                if (cur.bannedUntil() > now) return cur;
+                long[] f = cur.failures();
+                int from = 0;
+                while (from < f.length && f[from] <= now - windowMs) from++;
+                long[] kept = Arrays.copyOfRange(f, from, f.length + 1);
+                kept[kept.length - 1] = now;
+                next = kept.length >= max ? new Window(new long[0], now + banMs) : new Window(kept, 0);
+            } while (!ref.compareAndSet(cur, next));
+            // prune() may have dropped this window in between; count the failure again in the fresh one
+            if (map.get(key) == ref) return next;
+        }
+    }
+
+    private static <K> void prune(Map<K, AtomicReference<Window>> map, long now, long windowMs) {
+        for (Map.Entry<K, AtomicReference<Window>> e : map.entrySet()) {
+            if (e.getValue().get().stale(now, windowMs)) map.remove(e.getKey(), e.getValue());
+        }
+    }
+
+    private static long until(AtomicReference<Window> ref) {
+        return ref == null ? 0 : ref.get().bannedUntil();
+    }
+}
@@ -0,0 +1,116 @@
+package com.forkthus.twofadialog.auth;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.util.UUID;
+
+/**
+ * Everything the plugin tracks for one player between joining and passing 2FA.
+ * Created QUEUED on join; freezing takes the backups, and on unfreeze the plugin restores them and calls {@link #end()}.
+ */
+public final class AuthSession {
+    public enum Phase { QUEUED, SCAN_PROMPT, SCANNING, LOGIN, DONE }
+
+    // Rough shallow sizes on a 64-bit JVM with compressed oops, for diagnostics only
+    private static final int SESSION_BYTES = 80;   // object header and fields
+    private static final int MAP_ENTRY_BYTES = 48; // ConcurrentHashMap node plus its UUID key
+    private static final int ARRAY_HEADER_BYTES = 16;
+
+    private final UUID id;
+    private volatile Phase phase; // read from async chat events
+
+    // Backups restored when the session ends, taken when the player is frozen
+    private boolean frozen;
+    private ItemStack[] inventory;
+    private float yaw, pitch;
+
+    // Timeout, counted from startTimeout()
+    private long startedAt;
+    private int timeoutSeconds;
+    private TimerWheel.Timer timeoutTask;
+    private TimerWheel.Timer askTask;
+
+    private String secret;     // read off the server thread when the session starts, for the QR map
+    private boolean qrShown;   // view locked down, no sneaking or jumping
+    private boolean verifying; // an OTP submit is on the verify executor
+
+    private final long createdAt = System.currentTimeMillis();
+
+    public AuthSession(UUID id) {
+        this.id = id;
+        this.phase = Phase.QUEUED;
+    }
+
+    public UUID id() { return id; }
+    public Phase phase() { return phase; }
+    public void phase(Phase phase) { this.phase = phase; }
+    public boolean isActive() { return phase != Phase.DONE; }
+
+    public String secret() { return secret; }
+    public void secret(String base32) { secret = base32; }
+
+    // The QR map stays in slot 0 from the moment it is given until the session ends
+    public boolean qrShown() { return qrShown; }
+    public void qrShown(boolean v) { qrShown = v; }
+
+    // Waiting for admission: movement and actions are blocked, but nothing has been backed up or changed yet
+    public boolean isQueued() { return phase == Phase.QUEUED; }
+    public long createdAt() { return createdAt; }
+
+    public boolean isFrozen() { return frozen; }
+    public void backup(ItemStack[] inventory, float yaw, float pitch) {
+        this.inventory = inventory;
+        this.yaw = yaw;
+        this.pitch = pitch;
+        frozen = true;
+    }
+
+    public ItemStack[] inventory() { return inventory; }
+    public float yaw() { return yaw; }
+    public float pitch() { return pitch; }
+
+    public void startTimeout(int seconds, TimerWheel.Timer task) {
+        cancelTimeout();
+        startedAt = System.currentTimeMillis();
+        timeoutSeconds = seconds;
+        timeoutTask = task;
+    }
+
+    public void cancelTimeout() {
+        if (timeoutTask != null) timeoutTask.cancel();
+        timeoutTask = null;
+    }
+
+    public int remainingSeconds() {
+        if (startedAt == 0) return 0;
+        long elapsed = (System.currentTimeMillis() - startedAt) / 1000;
+        return Math.max(0, timeoutSeconds - (int) elapsed);
+    }
+
+    public void ask(TimerWheel.Timer task) {
+        cancelAsk();
+        askTask = task;
+    }
+
+    public void cancelAsk() {
+        if (askTask != null) askTask.cancel();
+        askTask = null;
+    }
+
+    public boolean verifying() { return verifying; }
+    public void verifying(boolean v) { verifying = v; }
+
+    // Cancels anything still scheduled and marks the session finished; safe to call twice
+    public void end() {
+        cancelAsk();
+        cancelTimeout();
+        phase = Phase.DONE;
+    }
+
+    // Approximate bytes held by this session, excluding the backed-up items themselves (the player owns those)
+    public long estimatedBytes() {
+        long bytes = SESSION_BYTES + MAP_ENTRY_BYTES;
+        if (inventory != null) bytes += ARRAY_HEADER_BYTES + 4L * inventory.length;
+        return bytes;
+    }
+}
@@ -0,0 +1,188 @@
+package com.forkthus.twofadialog.auth;
+
+import com.destroystokyo.paper.event.player.PlayerJumpEvent;
+import com.forkthus.twofadialog.config.ConfigManager;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDamageByEntityEvent;
+import org.bukkit.event.entity.EntityDamageEvent;
+import org.bukkit.event.player.*;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.persistence.PersistentDataType;
+
+import java.util.Map;
+import java.util.UUID;
+
+import static com.forkthus.twofadialog.qr.QrMap.QR_TAG;
+
+/**
+ * Blocks everything a player may not do while authenticating.
+ * Only registered while at least one session exists, so a server with nobody in 2FA pays nothing for it.
+ */
+public final class FreezeListener implements Listener {
+    private final Map<UUID, AuthSession> sessions;
+    private final ConfigManager config;
+
+    public FreezeListener(Map<UUID, AuthSession> sessions, ConfigManager config) {
+        this.sessions = sessions;
+        this.config = config;
+    }
+
+    private boolean isFrozen(UUID id) {
+        return sessions.containsKey(id);
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onMove(PlayerMoveEvent e) {
+        AuthSession session = sessions.get(e.getPlayer().getUniqueId());
+        if (session == null) return;
+        
+        // Prevent position movement (field comparison, no Location math)
+        if (e.hasChangedPosition()) {
+            e.setTo(e.getFrom()); // "freeze" by snapping back
+        }
+        
+        // Lock the view straight down while they hold the QR map; only head movement costs anything
+        if (session.qrShown()) {
+            Location to = e.getTo();
+            if (Math.abs(to.getPitch() - 90f) > 0.1f) {
+                to.setPitch(90f);
+                e.setTo(to);
+            }
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onCommand(PlayerCommandPreprocessEvent e) {
+        if (isFrozen(e.getPlayer().getUniqueId())) {
+            e.setCancelled(true);
+            e.getPlayer().sendMessage(config.getFinishLoginErrorComponent());
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onPlayerTeleport(PlayerTeleportEvent e) {
+        AuthSession session = sessions.get(e.getPlayer().getUniqueId());
+        if (session != null && !session.isQueued()) { // admission teleports queued players to spawn
+            e.setCancelled(true);
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onEntityDamageByEntity(EntityDamageByEntityEvent e) {
+        // Prevent frozen players from being damaged
+        if (e.getEntity() instanceof Player victim && isFrozen(victim.getUniqueId())) {
+            e.setCancelled(true);
+        }
+        // Prevent frozen players from damaging others
+        if (e.getDamager() instanceof Player attacker && isFrozen(attacker.getUniqueId())) {
+            e.setCancelled(true);
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onEntityDamage(EntityDamageEvent e) {
+        // Prevent any damage to frozen players
+        if (e.getEntity() instanceof Player player && isFrozen(player.getUniqueId())) {
+            e.setCancelled(true);
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onItemDrop(PlayerDropItemEvent e) {
+        Player p = e.getPlayer();
+        if (isFrozen(p.getUniqueId())) {
+            ItemStack item = e.getItemDrop().getItemStack();
+            if (item.getItemMeta() != null) {
+                var pdc = item.getItemMeta().getPersistentDataContainer();
+                Byte tag = pdc.get(QR_TAG, PersistentDataType.BYTE);
+                if (tag != null && tag == (byte)1) {
+                    e.setCancelled(true);
+                    p.sendMessage(config.getNoDropMapErrorComponent());
+                }
+            }
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onInventoryClick(org.bukkit.event.inventory.InventoryClickEvent e) {
+        if (e.getWhoClicked() instanceof Player p && isFrozen(p.getUniqueId())) {
+            // Allow viewing the QR map but prevent moving it
+            ItemStack item = e.getCurrentItem();
+            if (item != null && item.getItemMeta() != null) {
+                var pdc = item.getItemMeta().getPersistentDataContainer();
+                Byte tag = pdc.get(QR_TAG, PersistentDataType.BYTE);
+                if (tag != null && tag == (byte)1) {
+                    e.setCancelled(true);
+                }
+            }
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onPlayerChat(org.bukkit.event.player.AsyncPlayerChatEvent e) {
+        if (isFrozen(e.getPlayer().getUniqueId())) {
+            e.setCancelled(true);
+            e.getPlayer().sendMessage(config.getNoChatErrorComponent());
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onPlayerItemHeld(PlayerItemHeldEvent e) {
+        if (isFrozen(e.getPlayer().getUniqueId())) {
+            e.setCancelled(true);
+            // Force back to slot 0 if they somehow change
+            if (e.getPlayer().getInventory().getHeldItemSlot() != 0) {
+                e.getPlayer().getInventory().setHeldItemSlot(0);
+            }
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onBlockBreak(org.bukkit.event.block.BlockBreakEvent e) {
+        if (isFrozen(e.getPlayer().getUniqueId())) {
+            e.setCancelled(true);
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onBlockPlace(org.bukkit.event.block.BlockPlaceEvent e) {
+        if (isFrozen(e.getPlayer().getUniqueId())) {
+            e.setCancelled(true);
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onPlayerInteract(PlayerInteractEvent e) {
+        if (isFrozen(e.getPlayer().getUniqueId())) {
+            e.setCancelled(true);
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onPlayerInteractEntity(PlayerInteractEntityEvent e) {
+        if (isFrozen(e.getPlayer().getUniqueId())) {
+            e.setCancelled(true);
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onPlayerToggleSneak(PlayerToggleSneakEvent e) {
+        // No sneaking while holding the QR map
+        AuthSession session = sessions.get(e.getPlayer().getUniqueId());
+        if (session != null && session.qrShown()) {
+            e.setCancelled(true);
+        }
+    }
+
+    @EventHandler(ignoreCancelled = true)
+    public void onPlayerJump(PlayerJumpEvent e) {
+        // No jumping while holding the QR map
+        AuthSession session = sessions.get(e.getPlayer().getUniqueId());
+        if (session != null && session.qrShown()) {
+            e.setCancelled(true);
+        }
+    }
+}
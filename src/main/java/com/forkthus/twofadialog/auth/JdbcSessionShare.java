@@ -0,0 +1,159 @@
+package com.forkthus.twofadialog.auth;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * {@link SessionShare} over one SQL table that every server reads and writes: MySQL/MariaDB across machines,
+ * or a SQLite file that several servers on the same machine point at.
+ * Publishes and revokes run on a background writer; expired rows are deleted every few minutes.
+ */
+public final class JdbcSessionShare implements SessionShare {
+    private static final long PURGE_INTERVAL_MINUTES = 10;
+
+    private final HikariDataSource ds;
+    private final Logger logger;
+    private final String selectSql;
+    private final String upsertSql;
+    private final String deleteSql;
+    private final String purgeSql;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "TwoFADialog-Session-Share");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static JdbcSessionShare sqlite(File file, String table, Logger logger) throws IOException {
+        HikariConfig hc = new HikariConfig();
+        hc.setJdbcUrl("jdbc:sqlite:" + file.getAbsolutePath());
+        hc.setDriverClassName("org.sqlite.JDBC");
+        hc.setConnectionInitSql("PRAGMA busy_timeout=5000"); // other servers write to the same file
+        hc.setMaximumPoolSize(2);
+        return new JdbcSessionShare(hc, true, table, logger);
+    }
+
+    public static JdbcSessionShare mysql(String host, int port, String database, String username, String password,
+                                         String table, Logger logger) throws IOException {
+        HikariConfig hc = new HikariConfig();
+        hc.setJdbcUrl("jdbc:mysql://" + host + ":" + port + "/" + database);
+        hc.setUsername(username);
+        hc.setPassword(password);
+        hc.setMaximumPoolSize(2);
+        return new JdbcSessionShare(hc, false, table, logger);
+    }
+
+    private JdbcSessionShare(HikariConfig hc, boolean sqlite, String table, Logger logger) throws IOException {
+        if (!table.matches("[A-Za-z0-9_]+")) throw new IOException("Invalid table name '" + table + "'");
+        this.logger = logger;
+        this.selectSql = "SELECT ip, expires_at FROM " + table + " WHERE uuid = ?";
+        this.deleteSql = "DELETE FROM " + table + " WHERE uuid = ?";
+        this.purgeSql = "DELETE FROM " + table + " WHERE expires_at < ?";
+        String insert = "INSERT INTO " + table + " (uuid, ip, expires_at) VALUES (?, ?, ?)";
+        this.upsertSql = sqlite
+                ? insert + " ON CONFLICT(uuid) DO UPDATE SET ip = excluded.ip, expires_at = excluded.expires_at"
+                : insert + " ON DUPLICATE KEY UPDATE ip = VALUES(ip), expires_at = VALUES(expires_at)";
+
+        hc.setPoolName("TwoFADialog-Share-Pool");
+        try {
+            this.ds = new HikariDataSource(hc);
+        } catch (RuntimeException e) {
+            throw new IOException("Could not connect to " + hc.getJdbcUrl() + ": " + e.getMessage(), e);
+        }
+        try (Connection con = ds.getConnection(); Statement st = con.createStatement()) {
+            if (sqlite) st.execute("PRAGMA journal_mode=WAL");
+            st.execute("CREATE TABLE IF NOT EXISTS " + table + " ("
+                    + "uuid CHAR(36) NOT NULL PRIMARY KEY,"
+                    + " ip VARCHAR(45),"
+                    + " expires_at BIGINT NOT NULL)");
+        } catch (SQLException e) {
+            ds.close();
+            throw new IOException("Could not create table " + table + ": " + e.getMessage(), e);
+        }
+        writer.scheduleWithFixedDelay(this::purge, PURGE_INTERVAL_MINUTES, PURGE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    @Override public long validUntil(UUID id, String ip, boolean requireSameIp, long now) {
+        try (Connection con = ds.getConnection(); PreparedStatement ps = con.prepareStatement(selectSql)) {
+            ps.setString(1, id.toString());
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return 0;
+                long expiresAt = rs.getLong(2);
+                if (expiresAt <= now || (requireSameIp && !ip.equals(rs.getString(1)))) return 0;
+                return expiresAt;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not look up shared 2FA session: " + e.getMessage(), e);
+        }
+    }
+
+    @Override public void publish(UUID id, String ip, long expiresAt) {
+        submit(() -> {
+            try (Connection con = ds.getConnection(); PreparedStatement ps = con.prepareStatement(upsertSql)) {
+                ps.setString(1, id.toString());
+                ps.setString(2, ip);
+                ps.setLong(3, expiresAt);
+                ps.executeUpdate();
+            }
+        });
+    }
+
+    @Override public void revoke(UUID id) {
+        submit(() -> {
+            try (Connection con = ds.getConnection(); PreparedStatement ps = con.prepareStatement(deleteSql)) {
+                ps.setString(1, id.toString());
+                ps.executeUpdate();
+            }
+        });
+    }
+
+    @Override public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ds.close();
+    }
+
+    private interface Write {
+        void run() throws SQLException;
+    }
+
+    private void submit(Write write) {
+        try {
+            writer.execute(() -> {
+                try {
+                    write.run();
+                } catch (SQLException e) {
+                    logger.warning("Could not update shared 2FA sessions: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException shuttingDown) {
+            // close() has started; the session simply is not shared
+        }
+    }
+
+    private void purge() {
+        try (Connection con = ds.getConnection(); PreparedStatement ps = con.prepareStatement(purgeSql)) {
+            ps.setLong(1, System.currentTimeMillis());
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            logger.warning("Could not purge expired shared 2FA sessions: " + e.getMessage());
+        }
+    }
+}
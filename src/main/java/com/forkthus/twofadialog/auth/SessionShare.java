@@ -0,0 +1,19 @@
+package com.forkthus.twofadialog.auth;
+
+import java.util.UUID;
+
+/**
+ * Passed 2FA sessions shared between the servers behind one proxy, so switching backends does not ask again.
+ * {@link #validUntil} may block and is only called from the async pre-login; writes never block the caller.
+ */
+public interface SessionShare {
+    // Expiry of a session another server (or this one) published for this player, or 0 when there is none.
+    // With requireSameIp, only a session published from the same IP counts.
+    long validUntil(UUID id, String ip, boolean requireSameIp, long now);
+
+    void publish(UUID id, String ip, long expiresAt);
+
+    void revoke(UUID id);
+
+    void close();
+}
@@ -0,0 +1,94 @@
+package com.forkthus.twofadialog.auth;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timer wheel for per-session timeouts and prompts, advanced by one repeating server task.
+ * Scheduling and cancelling are O(1); a tick only looks at the one slot it lands on.
+ * Not thread-safe: schedule, cancel and tick all run on the server thread.
+ */
+public final class TimerWheel {
+    public final class Timer {
+        private final Runnable action;
+        private final long deadline; // wheel tick this fires on
+        private Timer prev, next;
+        private boolean linked;
+
+        private Timer(Runnable action, long deadline) {
+            this.action = action;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            unlink(this);
+        }
+
+        public boolean isPending() { return linked; }
+    }
+
+    private final Timer[] slots; // heads of doubly-linked lists
+    private final int mask;
+    private long now;
+    private int pending;
+    private final List<Timer> due = new ArrayList<>();
+
+    // slotCount is rounded up to a power of two; pick it near the longest common delay
+    public TimerWheel(int slotCount) {
+        int size = Integer.highestOneBit(Math.max(2, slotCount - 1)) << 1;
+        slots = new Timer[size];
+        mask = size - 1;
+    }
+
+    // Runs action after delayTicks calls to tick() (at least one)
+    public Timer schedule(long delayTicks, Runnable action) {
+        Timer t = new Timer(action, now + Math.max(1, delayTicks));
+        int slot = (int) (t.deadline & mask);
+        Timer head = slots[slot];
+        t.next = head;
+        if (head != null) head.prev = t;
+        slots[slot] = t;
+        t.linked = true;
+        pending++;
+        return t;
+    }
+
+    // Advances one tick and runs everything due; actions may schedule or cancel other timers freely
+    public void tick() {
+        now++;
+        for (Timer t = slots[(int) (now & mask)]; t != null; t = t.next) {
+            if (t.deadline <= now) due.add(t); // later timers hashed to this slot stay for another lap
+        }
+        if (due.isEmpty()) return;
+        for (Timer t : due) {
+            if (!t.linked) continue; // cancelled by an earlier action in this batch
+            unlink(t);
+            try {
+                t.action.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        due.clear();
+    }
+
+    public int pending() { return pending; }
+
+    public void clear() {
+        for (int i = 0; i < slots.length; i++) {
+            for (Timer t = slots[i]; t != null; t = t.next) t.linked = false;
+            slots[i] = null;
+        }
+        pending = 0;
+    }
+
+    private void unlink(Timer t) {
+        if (!t.linked) return;
+        if (t.prev != null) t.prev.next = t.next;
+        else slots[(int) (t.deadline & mask)] = t.next;
+        if (t.next != null) t.next.prev = t.prev;
+        t.prev = t.next = null;
+        t.linked = false;
+        pending--;
+    }
+}
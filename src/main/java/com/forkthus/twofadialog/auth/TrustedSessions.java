@@ -0,0 +1,221 @@
+package com.forkthus.twofadialog.auth;
+
+import com.forkthus.twofadialog.storage.IpLiteral;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Networks each player recently passed 2FA from (or that an admin trusted), checked in memory on join.
+ * Holds at most maxPlayers players, forgetting the least recently seen, and at most maxPerPlayer networks each.
+ * Changes are written to trusted.yml in the background.
+ */
+public final class TrustedSessions {
+    // One IP or CIDR range; address has its host bits cleared
+    public record Network(byte[] address, int prefix, long expiresAt) {
+        boolean contains(byte[] ip) {
+            if (ip.length != address.length) return false;
+            int full = prefix / 8, rest = prefix % 8;
+            for (int i = 0; i < full; i++) {
+                if (ip[i] != address[i]) return false;
+            }
+            if (rest == 0) return true;
+            int mask = (0xFF << (8 - rest)) & 0xFF;
+            return (ip[full] & mask) == (address[full] & 0xFF);
+        }
+
+        boolean sameRange(Network o) {
+            return prefix == o.prefix && Arrays.equals(address, o.address);
+        }
+
+        public String cidr() {
+            try {
+                return InetAddress.getByAddress(address).getHostAddress() + "/" + prefix;
+            } catch (UnknownHostException e) {
+                throw new IllegalStateException(e); // only thrown for bad lengths
+            }
+        }
+    }
+
+    private static final long FLUSH_INTERVAL_SECONDS = 30;
+
+    private final File file;
+    private final Logger logger;
+    private final int maxPlayers;
+    private final int maxPerPlayer;
+    private final Map<UUID, List<Network>> byPlayer; // access order, guarded by this
+    private boolean dirty;                            // guarded by this
+    private final Object writeLock = new Object();
+    private final ScheduledExecutorService flusher;
+
+    public TrustedSessions(File dataFolder, int maxPlayers, int maxPerPlayer, Logger logger) {
+        this.file = new File(dataFolder, "trusted.yml");
+        this.logger = logger;
+        this.maxPlayers = Math.max(1, maxPlayers);
+        this.maxPerPlayer = Math.max(1, maxPerPlayer);
+        this.byPlayer = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<UUID, List<Network>> eldest) {
+                return size() > TrustedSessions.this.maxPlayers;
+            }
+        };
+        load();
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "TwoFADialog-Trusted-Flush");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public synchronized boolean isTrusted(UUID id, InetAddress ip, long now) {
+        List<Network> networks = byPlayer.get(id);
+        if (networks == null) return false;
+        byte[] raw = ip.getAddress();
+        boolean trusted = false;
+        for (int i = networks.size() - 1; i >= 0; i--) {
+            Network n = networks.get(i);
+            if (n.expiresAt() <= now) {
+                networks.remove(i);
+                dirty = true;
+            } else if (n.contains(raw)) {
+                trusted = true;
+            }
+        }
+        if (networks.isEmpty()) byPlayer.remove(id);
+        return trusted;
+    }
+
+    // Trusts the prefix-sized network around ip until expiresAt (extends it if already trusted)
+    public void trust(UUID id, InetAddress ip, int prefix, long expiresAt) {
+        trust(id, network(ip.getAddress(), prefix, expiresAt));
+    }
+
+    public synchronized void trust(UUID id, Network network) {
+        List<Network> networks = byPlayer.computeIfAbsent(id, k -> new ArrayList<>(2));
+        networks.removeIf(n -> n.sameRange(network));
+        if (networks.size() >= maxPerPlayer) {
+            // Make room by dropping the one that would expire first
+            Network soonest = networks.get(0);
+            for (Network n : networks) if (n.expiresAt() < soonest.expiresAt()) soonest = n;
+            networks.remove(soonest);
+        }
+        networks.add(network);
+        dirty = true;
+    }
+
+    public synchronized void forget(UUID id) {
+        if (byPlayer.remove(id) != null) dirty = true;
+    }
+
+    public synchronized int size() {
+        return byPlayer.size();
+    }
+
+    // "203.0.113.7" or "203.0.113.0/24" (IPv6 too); only literal addresses, never a DNS lookup
+    public static Network parse(String cidr, long expiresAt) {
+        int slash = cidr.indexOf('/');
+        String host = slash < 0 ? cidr : cidr.substring(0, slash);
+        byte[] raw = IpLiteral.parse(host);
+        int prefix;
+        try {
+            prefix = slash < 0 ? raw.length * 8 : Integer.parseInt(cidr.substring(slash + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad prefix length: " + cidr);
+        }
+        if (prefix < 0 || prefix > raw.length * 8) throw new IllegalArgumentException("Bad prefix length: " + cidr);
+        return network(raw, prefix, expiresAt);
+    }
+
+    private static Network network(byte[] raw, int prefix, long expiresAt) {
+        byte[] masked = raw.clone();
+        int bits = Math.max(0, Math.min(prefix, masked.length * 8));
+        for (int i = 0; i < masked.length; i++) {
+            int keep = Math.max(0, Math.min(8, bits - i * 8));
+            masked[i] &= (byte) ((0xFF << (8 - keep)) & 0xFF);
+        }
+        return new Network(masked, bits, expiresAt);
+    }
+
+    private void load() {
+        if (!file.exists()) return;
+        YamlConfiguration yml = YamlConfiguration.loadConfiguration(file);
+        long now = System.currentTimeMillis();
+        for (String key : yml.getKeys(false)) {
+            UUID id;
+            try {
+                id = UUID.fromString(key);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            for (String entry : yml.getStringList(key)) {
+                // "<cidr>@<expiry millis>"
+                int at = entry.lastIndexOf('@');
+                try {
+                    long expiresAt = Long.parseLong(entry.substring(at + 1));
+                    if (at > 0 && expiresAt > now) trust(id, parse(entry.substring(0, at), expiresAt));
+                } catch (IllegalArgumentException e) {
+                    logger.warning("Skipping bad trusted.yml entry for " + key + ": " + entry);
+                }
+            }
+        }
+        synchronized (this) { dirty = false; }
+    }
+
+    // Snapshots the index under the lock, then writes trusted.yml atomically outside it
+    private void flush() {
+        synchronized (writeLock) {
+            YamlConfiguration yml = new YamlConfiguration();
+            synchronized (this) {
+                if (!dirty) return;
+                dirty = false;
+                for (Map.Entry<UUID, List<Network>> e : byPlayer.entrySet()) {
+                    List<String> out = new ArrayList<>(e.getValue().size());
+                    for (Network n : e.getValue()) out.add(n.cidr() + "@" + n.expiresAt());
+                    yml.set(e.getKey().toString(), out);
+                }
+            }
+            try {
+                Path target = file.toPath();
+                Path tmp = target.resolveSibling(file.getName() + ".tmp");
+                Files.createDirectories(target.getParent());
+                Files.writeString(tmp, yml.saveToString(), StandardCharsets.UTF_8);
+                try {
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (this) { dirty = true; } // retry on the next flush
+            }
+        }
+    }
+
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
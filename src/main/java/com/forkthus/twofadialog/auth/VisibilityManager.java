@@ -0,0 +1,84 @@
+package com.forkthus.twofadialog.auth;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+/**
+ * Keeps frozen players hidden from everyone who has finished (or skipped) 2FA.
+ * Players still authenticating are not hidden from each other, which turns a join storm from
+ * O(N²) hide calls into O(N) per remaining viewer. Changes are queued and applied once per tick by
+ * {@link #flush()}, so a freeze undone in the same tick costs nothing. Server thread only.
+ */
+public final class VisibilityManager {
+    private record Change(Player player, boolean hide) { }
+
+    private final Plugin plugin;
+    private final Predicate<UUID> authenticating; // viewers that need no hiding yet
+    private final Set<UUID> hidden = new HashSet<>();                      // target state
+    private final Map<UUID, Change> pending = new LinkedHashMap<>();       // hide/show not yet applied
+    private final Map<UUID, Player> pendingViewers = new LinkedHashMap<>(); // must stop seeing every hidden player
+
+    public VisibilityManager(Plugin plugin, Predicate<UUID> authenticating) {
+        this.plugin = plugin;
+        this.authenticating = authenticating;
+    }
+
+    public void hide(Player p) {
+        if (hidden.add(p.getUniqueId())) toggle(p, true);
+    }
+
+    public void show(Player p) {
+        if (hidden.remove(p.getUniqueId())) toggle(p, false);
+    }
+
+    // p can see the server normally from now on (joined without 2FA, or just passed it): hide the frozen from them
+    public void viewerReady(Player p) {
+        pendingViewers.put(p.getUniqueId(), p);
+    }
+
+    public void quit(Player p) {
+        pendingViewers.remove(p.getUniqueId());
+    }
+
+    public int hiddenCount() { return hidden.size(); }
+
+    private void toggle(Player p, boolean hide) {
+        // A change that reverses one still pending (freeze and unfreeze in one tick) cancels out
+        if (pending.remove(p.getUniqueId()) == null) pending.put(p.getUniqueId(), new Change(p, hide));
+    }
+
+    public void flush() {
+        if (pending.isEmpty() && pendingViewers.isEmpty()) return;
+        if (!pending.isEmpty()) {
+            var online = Bukkit.getOnlinePlayers();
+            for (Change c : pending.values()) {
+                Player p = c.player();
+                for (Player other : online) {
+                    if (other == p) continue;
+                    if (c.hide()) {
+                        if (!authenticating.test(other.getUniqueId())) other.hidePlayer(plugin, p);
+                    } else {
+                        other.showPlayer(plugin, p); // also runs for players who just quit, so a rejoin starts visible
+                    }
+                }
+            }
+            pending.clear();
+        }
+        for (Player viewer : pendingViewers.values()) {
+            if (!viewer.isOnline()) continue;
+            for (UUID id : hidden) {
+                Player p = Bukkit.getPlayer(id);
+                if (p != null && p != viewer) viewer.hidePlayer(plugin, p);
+            }
+        }
+        pendingViewers.clear();
+    }
+}
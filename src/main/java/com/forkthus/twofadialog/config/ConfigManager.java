@@ -1,11 +1,11 @@
 package com.forkthus.twofadialog.config;
 
-import org.bukkit.configuration.file.FileConfiguration;
+import net.kyori.adventure.text.Component;
 import org.bukkit.plugin.java.JavaPlugin;
 
 public class ConfigManager {
     private final JavaPlugin plugin;
-    private FileConfiguration config;
+    private volatile Settings settings;
     
     public ConfigManager(JavaPlugin plugin) {
         this.plugin = plugin;
@@ -14,52 +14,127 @@ public class ConfigManager {
     
     public void loadConfig() {
         plugin.reloadConfig();
-        config = plugin.getConfig();
+        settings = Settings.from(plugin.getConfig()); // built fully before anyone can see it
+    }
+    
+    // Current snapshot; getters below are plain field reads, safe from any thread
+    public Settings settings() {
+        return settings;
     }
     
     // Auth settings
     public int getTimeWindow() {
-        return config.getInt("auth.time-window", 1);
+        return settings.timeWindow();
     }
     
     public int getIpBypassDays() {
-        return config.getInt("auth.ip-bypass-days", 7);
+        return settings.ipBypassDays();
     }
     
     public int getScanAskDelay() {
-        return config.getInt("auth.scan-ask-delay", 10);
+        return settings.scanAskDelay();
     }
     
     public String getServerName() {
-        return config.getString("auth.server-name", "My Minecraft Server");
+        return settings.serverName();
     }
     
     public int getRegistrationTimeout() {
-        return config.getInt("auth.registration-timeout", 90);
+        return settings.registrationTimeout();
     }
     
     public int getLoginTimeout() {
-        return config.getInt("auth.login-timeout", 30);
+        return settings.loginTimeout();
     }
     
     public int getMaxFailedAttempts() {
-        return config.getInt("auth.max-failed-attempts", 3);
+        return settings.maxFailedAttempts();
     }
     
     public int getFailedAttemptBanMinutes() {
-        return config.getInt("auth.failed-attempt-ban-minutes", 5);
+        return settings.failedAttemptBanMinutes();
+    }
+    
+    public int getFailedAttemptWindowMinutes() {
+        return settings.failedAttemptWindowMinutes();
+    }
+    
+    public int getMaxFailedAttemptsPerIp() {
+        return settings.maxFailedAttemptsPerIp();
+    }
+    
+    public int getVerifyThreads() {
+        return settings.verifyThreads();
+    }
+    
+    public int getAdmissionsPerTick() {
+        return settings.admissionsPerTick();
+    }
+    
+    public int getTrustedIpv4Prefix() { return settings.trustedIpv4Prefix(); }
+    public int getTrustedIpv6Prefix() { return settings.trustedIpv6Prefix(); }
+    public int getTrustedMaxPerPlayer() { return settings.trustedMaxPerPlayer(); }
+    public int getTrustedMaxPlayers() { return settings.trustedMaxPlayers(); }
+    
+    // Storage settings
+    public String getStorageType() {
+        return settings.storageType();
+    }
+    
+    public int getStorageFlushInterval() {
+        return settings.storageFlushInterval();
+    }
+    
+    public boolean getJournalFsync() {
+        return settings.journalFsync();
+    }
+    
+    public int getJournalCompactThreshold() {
+        return settings.journalCompactThreshold();
+    }
+    
+    public int getShardedIdleMinutes() {
+        return settings.shardedIdleMinutes();
     }
     
-    // Message getters with placeholder support
+    public String getSqlTable() { return settings.sqlTable(); }
+    public int getSqlPoolSize() { return settings.sqlPoolSize(); }
+    public String getSqlHost() { return settings.sqlHost(); }
+    public int getSqlPort() { return settings.sqlPort(); }
+    public String getSqlDatabase() { return settings.sqlDatabase(); }
+    public String getSqlUsername() { return settings.sqlUsername(); }
+    public String getSqlPassword() { return settings.sqlPassword(); }
+    
+    // Metrics settings
+    public boolean getMetricsHttpEnabled() { return settings.metricsHttpEnabled(); }
+    public int getMetricsHttpPort() { return settings.metricsHttpPort(); }
+    
+    public String getShareType() { return settings.shareType(); }
+    public int getShareMinutes() { return settings.shareMinutes(); }
+    public boolean getShareRequireSameIp() { return settings.shareRequireSameIp(); }
+    public String getShareTable() { return settings.shareTable(); }
+    public String getShareSqliteFile() { return settings.shareSqliteFile(); }
+    
+    // Message getters with placeholder support (templates are split into segments at load time)
     public String getMessage(String path) {
-        return config.getString("messages." + path, "Missing message: " + path);
+        return settings.message(path).render();
     }
     
     public String getMessage(String path, String placeholder, String value) {
-        return getMessage(path).replace("%" + placeholder + "%", value);
+        return settings.message(path).render(placeholder, value);
+    }
+    
+    // Fixed messages as ready-made Components
+    public Component getMessageComponent(String path) {
+        return settings.message(path).component();
     }
     
     // Specific message getters for commonly used ones
+    public String getQueuedTitle() { return getMessage("queued.title"); }
+    public String getQueuedBody(int position) { return getMessage("queued.body", "position", String.valueOf(position)); }
+    public String getQueuedLeaveButton() { return getMessage("queued.leave-button"); }
+    public String getQueuedLeaveDesc() { return getMessage("queued.leave-description"); }
+    
     public String getScanPromptTitle() { return getMessage("scan-prompt.title"); }
     public String getScanPromptBody(int timeLeft) { return getMessage("scan-prompt.body", "time-left", String.valueOf(timeLeft)); }
     public String getScanPromptButtonText() { return getMessage("scan-prompt.button-text"); }
@@ -96,7 +171,11 @@ public class ConfigManager {
     public String getNoChatError() { return getMessage("errors.no-chat"); }
     public String getNoDropMapError() { return getMessage("errors.no-drop-map"); }
     public String getFinishLoginError() { return getMessage("errors.finish-login"); }
+    public Component getNoChatErrorComponent() { return getMessageComponent("errors.no-chat"); }
+    public Component getNoDropMapErrorComponent() { return getMessageComponent("errors.no-drop-map"); }
+    public Component getFinishLoginErrorComponent() { return getMessageComponent("errors.finish-login"); }
     public String getTimeoutExpiredError() { return getMessage("errors.timeout-expired"); }
+    public String getStorageUnavailableError() { return getMessage("errors.storage-unavailable"); }
     
     public String getNoPermissionMessage() { return getMessage("admin.no-permission"); }
     public String getUsageMessage() { return getMessage("admin.usage"); }
@@ -104,4 +183,67 @@ public class ConfigManager {
     public String getPlayerResetMessage(String playerName) { return getMessage("admin.player-reset", "player", playerName); }
     public String getConfigReloadedMessage() { return getMessage("admin.config-reloaded"); }
     public String getConfigReloadErrorMessage(String error) { return getMessage("admin.config-reload-error", "error", error); }
+    public String getStatsHeaderMessage() { return getMessage("admin.stats-header"); }
+    public String getStatsValueMessage(String name, long value) {
+        return settings.message("admin.stats-value").render("name", name, "value", String.valueOf(value));
+    }
+    public String getStatsLatencyMessage(String name, long count, String p50, String p99, String max) {
+        return settings.message("admin.stats-latency").render("name", name, "count", String.valueOf(count),
+                "p50", p50, "p99", p99, "max", max);
+    }
+    public String getBulkBusyMessage(String job) { return getMessage("admin.bulk-busy", "job", job); }
+    public String getBulkStartedMessage(String job, long total) {
+        return settings.message("admin.bulk-started").render("job", job, "total", String.valueOf(total));
+    }
+    public String getBulkProgressMessage(String job, long done, long total, long rate, long etaSeconds) {
+        return settings.message("admin.bulk-progress").render("job", job, "done", String.valueOf(done),
+                "total", String.valueOf(total), "rate", String.valueOf(rate), "eta", String.valueOf(etaSeconds));
+    }
+    public String getBulkFailedMessage(String job, String error) {
+        return settings.message("admin.bulk-failed").render("job", job, "error", error);
+    }
+    public String getPurgeDoneMessage(long removed, long total, int days, String seconds) {
+        return settings.message("admin.purge-done").render("removed", String.valueOf(removed), "total", String.valueOf(total),
+                "days", String.valueOf(days), "seconds", seconds);
+    }
+    public String getExportDoneMessage(long count, String file, String seconds) {
+        return settings.message("admin.export-done").render("count", String.valueOf(count), "file", file, "seconds", seconds);
+    }
+    public String getImportDoneMessage(long imported, long skipped, long invalid, String seconds) {
+        return settings.message("admin.import-done").render("imported", String.valueOf(imported),
+                "skipped", String.valueOf(skipped), "invalid", String.valueOf(invalid), "seconds", seconds);
+    }
+    public String getImportNotFoundMessage(String file) { return getMessage("admin.import-not-found", "file", file); }
+    public String getMigrateNotActiveMessage(String from, String active) {
+        return settings.message("admin.migrate-not-active").render("from", from, "active", active);
+    }
+    public String getMigrateResumedMessage(String from, String to, long done) {
+        return settings.message("admin.migrate-resumed").render("from", from, "to", to, "done", String.valueOf(done));
+    }
+    public String getMigrateDoneMessage(String from, String to, long count, long repaired, String checksum, String seconds) {
+        return settings.message("admin.migrate-done").render("from", from, "to", to, "count", String.valueOf(count),
+                "repaired", String.valueOf(repaired), "checksum", checksum, "seconds", seconds);
+    }
+    public String getTrustedMessage(String playerName, String cidr, int days) {
+        return settings.message("admin.trusted").render("player", playerName, "cidr", cidr, "days", String.valueOf(days));
+    }
+    public String getUntrustedMessage(String playerName) { return getMessage("admin.untrusted", "player", playerName); }
+    public String getInvalidCidrMessage(String cidr) { return getMessage("admin.invalid-cidr", "cidr", cidr); }
+    public String getStorageErrorMessage(String playerName, String error) {
+        return settings.message("admin.storage-error").render("player", playerName, "error", error);
+    }
+    public String getSessionsMessage(int total, int scanPrompt, int scanning, int login, long memoryKb) {
+        return settings.message("admin.sessions").render("total", String.valueOf(total),
+                "scan-prompt", String.valueOf(scanPrompt), "scanning", String.valueOf(scanning),
+                "login", String.valueOf(login), "memory", String.valueOf(memoryKb));
+    }
+    public String getDialogCacheMessage(long hits, long misses) {
+        long total = hits + misses;
+        return settings.message("admin.dialog-cache").render("hits", String.valueOf(hits), "misses", String.valueOf(misses),
+                "hit-rate", String.valueOf(total == 0 ? 0 : hits * 100 / total));
+    }
+    public String getAdmissionQueueMessage(int queued, long oldestWaitSeconds, long averageWaitMs) {
+        return settings.message("admin.admission-queue").render("queued", String.valueOf(queued),
+                "oldest-wait", String.valueOf(oldestWaitSeconds), "average-wait", String.valueOf(averageWaitMs));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,83 @@
+package com.forkthus.twofadialog.config;
+
+import net.kyori.adventure.text.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message split once into literal text and %placeholder% slots.
+ * Messages without placeholders also keep their Component, so sending them allocates nothing.
+ */
+public final class MessageTemplate {
+    private final String[] literals;     // literals.length == names.length + 1
+    private final String[] names;
+    private final int literalLength;
+    private final Component component;   // null when the message has placeholders
+
+    private MessageTemplate(String[] literals, String[] names) {
+        this.literals = literals;
+        this.names = names;
+        int len = 0;
+        for (String l : literals) len += l.length();
+        this.literalLength = len;
+        this.component = names.length == 0 ? Component.text(literals[0]) : null;
+    }
+
+    public static MessageTemplate compile(String text) {
+        List<String> literals = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == '%') {
+                int close = text.indexOf('%', i + 1);
+                if (close > 0 && isName(text, i + 1, close)) {
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                    names.add(text.substring(i + 1, close));
+                    i = close + 1;
+                    continue;
+                }
+            }
+            literal.append(c); // includes a lone '%', e.g. "50%"
+            i++;
+        }
+        literals.add(literal.toString());
+        return new MessageTemplate(literals.toArray(new String[0]), names.toArray(new String[0]));
+    }
+
+    private static boolean isName(String text, int start, int end) {
+        if (start == end) return false;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (!(Character.isLetterOrDigit(c) || c == '-' || c == '_')) return false;
+        }
+        return true;
+    }
+
+    // Pairs of placeholder name and value; placeholders without a value are left as written
+    public String render(String... pairs) {
+        if (names.length == 0) return literals[0];
+        StringBuilder sb = new StringBuilder(literalLength + 16 * names.length);
+        for (int i = 0; i < names.length; i++) {
+            sb.append(literals[i]);
+            String value = lookup(names[i], pairs);
+            if (value != null) sb.append(value);
+            else sb.append('%').append(names[i]).append('%');
+        }
+        return sb.append(literals[names.length]).toString();
+    }
+
+    public Component component(String... pairs) {
+        return component != null ? component : Component.text(render(pairs));
+    }
+
+    private static String lookup(String name, String[] pairs) {
+        for (int i = 0; i + 1 < pairs.length; i += 2) {
+            if (pairs[i].equals(name)) return pairs[i + 1];
+        }
+        return null;
+    }
+}
@@ -0,0 +1,80 @@
+package com.forkthus.twofadialog.config;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of config.yml, read once per load or reload.
+ * Safe to share with async threads; a reload swaps in a new instance.
+ */
+public record Settings(
+        int timeWindow, int ipBypassDays, int scanAskDelay, String serverName,
+        int registrationTimeout, int loginTimeout, int maxFailedAttempts, int failedAttemptBanMinutes,
+        int failedAttemptWindowMinutes, int maxFailedAttemptsPerIp,
+        int verifyThreads, int admissionsPerTick,
+        int trustedIpv4Prefix, int trustedIpv6Prefix, int trustedMaxPerPlayer, int trustedMaxPlayers,
+        String storageType, int storageFlushInterval, boolean journalFsync, int journalCompactThreshold, int shardedIdleMinutes,
+        String sqlTable, int sqlPoolSize, String sqlHost, int sqlPort, String sqlDatabase, String sqlUsername, String sqlPassword,
+        boolean metricsHttpEnabled, int metricsHttpPort,
+        String shareType, int shareMinutes, boolean shareRequireSameIp, String shareTable, String shareSqliteFile,
+        Map<String, MessageTemplate> messages) {
+
+    public static Settings from(FileConfiguration config) {
+        // Messages are keyed by their path under "messages", e.g. "login.body"
+        Map<String, MessageTemplate> messages = new HashMap<>();
+        ConfigurationSection section = config.getConfigurationSection("messages");
+        if (section != null) {
+            for (String key : section.getKeys(true)) {
+                if (section.isConfigurationSection(key)) continue;
+                Object value = section.get(key);
+                if (value != null) messages.put(key, MessageTemplate.compile(value.toString()));
+            }
+        }
+
+        return new Settings(
+                config.getInt("auth.time-window", 1),
+                config.getInt("auth.ip-bypass-days", 7),
+                config.getInt("auth.scan-ask-delay", 10),
+                config.getString("auth.server-name", "My Minecraft Server"),
+                config.getInt("auth.registration-timeout", 90),
+                config.getInt("auth.login-timeout", 30),
+                config.getInt("auth.max-failed-attempts", 3),
+                config.getInt("auth.failed-attempt-ban-minutes", 5),
+                config.getInt("auth.failed-attempt-window-minutes", 15),
+                config.getInt("auth.max-failed-attempts-per-ip", 10),
+                config.getInt("auth.verify-threads", 2),
+                config.getInt("auth.admissions-per-tick", 10),
+                config.getInt("auth.trusted.ipv4-prefix", 32),
+                config.getInt("auth.trusted.ipv6-prefix", 64),
+                config.getInt("auth.trusted.max-per-player", 3),
+                config.getInt("auth.trusted.max-players", 100000),
+                config.getString("storage.type", "yaml").toLowerCase(),
+                config.getInt("storage.flush-interval-seconds", 5),
+                config.getBoolean("storage.journal.fsync", false),
+                config.getInt("storage.journal.compact-threshold", 10000),
+                config.getInt("storage.sharded.idle-minutes", 10),
+                config.getString("storage.sql.table", "twofa_users"),
+                config.getInt("storage.sql.pool-size", 4),
+                config.getString("storage.sql.host", "localhost"),
+                config.getInt("storage.sql.port", 3306),
+                config.getString("storage.sql.database", "minecraft"),
+                config.getString("storage.sql.username", "root"),
+                config.getString("storage.sql.password", ""),
+                config.getBoolean("metrics.http.enabled", false),
+                config.getInt("metrics.http.port", 9464),
+                config.getString("network.session-share.type", "off").toLowerCase(),
+                config.getInt("network.session-share.minutes", 30),
+                config.getBoolean("network.session-share.require-same-ip", true),
+                config.getString("network.session-share.table", "twofa_sessions"),
+                config.getString("network.session-share.sqlite-file", "../twofa-sessions.db"),
+                Map.copyOf(messages));
+    }
+
+    public MessageTemplate message(String path) {
+        MessageTemplate t = messages.get(path);
+        return t != null ? t : MessageTemplate.compile("Missing message: " + path);
+    }
+}
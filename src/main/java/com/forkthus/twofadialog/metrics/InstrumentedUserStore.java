@@ -0,0 +1,52 @@
+package com.forkthus.twofadialog.metrics;
+
+import com.forkthus.twofadialog.storage.UserRecord;
+import com.forkthus.twofadialog.storage.UserStore;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiPredicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Times every call into the wrapped store: reads, writes and save() each feed their own histogram.
+ */
+public final class InstrumentedUserStore implements UserStore {
+    private final UserStore delegate;
+    private final Metrics metrics;
+
+    public InstrumentedUserStore(UserStore delegate, Metrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override public boolean hasSecret(UUID id) { long t = System.nanoTime(); try { return delegate.hasSecret(id); } finally { metrics.storeRead.since(t); } }
+    @Override public String getSecret(UUID id) { long t = System.nanoTime(); try { return delegate.getSecret(id); } finally { metrics.storeRead.since(t); } }
+    @Override public void setSecret(UUID id, String base32) { long t = System.nanoTime(); try { delegate.setSecret(id, base32); } finally { metrics.storeWrite.since(t); } }
+    @Override public boolean isEnrolled(UUID id) { long t = System.nanoTime(); try { return delegate.isEnrolled(id); } finally { metrics.storeRead.since(t); } }
+    @Override public void setEnrolled(UUID id, boolean v) { long t = System.nanoTime(); try { delegate.setEnrolled(id, v); } finally { metrics.storeWrite.since(t); } }
+    @Override public String getLastIP(UUID id) { long t = System.nanoTime(); try { return delegate.getLastIP(id); } finally { metrics.storeRead.since(t); } }
+    @Override public void setLastIP(UUID id, String ip) { long t = System.nanoTime(); try { delegate.setLastIP(id, ip); } finally { metrics.storeWrite.since(t); } }
+    @Override public long getLastLoginTime(UUID id) { long t = System.nanoTime(); try { return delegate.getLastLoginTime(id); } finally { metrics.storeRead.since(t); } }
+    @Override public void setLastLoginTime(UUID id, long timestamp) { long t = System.nanoTime(); try { delegate.setLastLoginTime(id, timestamp); } finally { metrics.storeWrite.since(t); } }
+    @Override public int getFailedAttempts(UUID id) { long t = System.nanoTime(); try { return delegate.getFailedAttempts(id); } finally { metrics.storeRead.since(t); } }
+    @Override public void setFailedAttempts(UUID id, int attempts) { long t = System.nanoTime(); try { delegate.setFailedAttempts(id, attempts); } finally { metrics.storeWrite.since(t); } }
+    @Override public long getBanExpiry(UUID id) { long t = System.nanoTime(); try { return delegate.getBanExpiry(id); } finally { metrics.storeRead.since(t); } }
+    @Override public void setBanExpiry(UUID id, long timestamp) { long t = System.nanoTime(); try { delegate.setBanExpiry(id, timestamp); } finally { metrics.storeWrite.since(t); } }
+    @Override public void removeUser(UUID id) { long t = System.nanoTime(); try { delegate.removeUser(id); } finally { metrics.storeWrite.since(t); } }
+    @Override public void save() { long t = System.nanoTime(); try { delegate.save(); } finally { metrics.storeSave.since(t); } }
+    @Override public void close() { delegate.close(); }
+
+    @Override public UserRecord load(UUID id) { long t = System.nanoTime(); try { return delegate.load(id); } finally { metrics.storeRead.since(t); } }
+    @Override public UserRecord update(UUID id, UnaryOperator<UserRecord> fn) { long t = System.nanoTime(); try { return delegate.update(id, fn); } finally { metrics.storeWrite.since(t); } }
+    @Override public Map<UUID, UserRecord> loadAll(Collection<UUID> ids) { long t = System.nanoTime(); try { return delegate.loadAll(ids); } finally { metrics.storeRead.since(t); } }
+    @Override public Collection<UUID> ids() { long t = System.nanoTime(); try { return delegate.ids(); } finally { metrics.storeRead.since(t); } }
+    @Override public void saveAll(Map<UUID, UserRecord> records) { long t = System.nanoTime(); try { delegate.saveAll(records); } finally { metrics.storeWrite.since(t); } }
+    @Override public int saveAllIfAbsent(Map<UUID, UserRecord> records) { long t = System.nanoTime(); try { return delegate.saveAllIfAbsent(records); } finally { metrics.storeWrite.since(t); } }
+    @Override public void removeAll(Collection<UUID> ids) { long t = System.nanoTime(); try { delegate.removeAll(ids); } finally { metrics.storeWrite.since(t); } }
+    @Override public List<UUID> removeAllIf(Collection<UUID> ids, BiPredicate<UUID, UserRecord> test) { long t = System.nanoTime(); try { return delegate.removeAllIf(ids, test); } finally { metrics.storeWrite.since(t); } }
+    @Override public long storageBytes() { return delegate.storageBytes(); }
+    @Override public boolean accepts(UserRecord record) { return delegate.accepts(record); }
+}
@@ -0,0 +1,95 @@
+package com.forkthus.twofadialog.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, latency histograms and gauges for /2fa stats and the Prometheus endpoint.
+ * Everything here can be recorded from any thread without locking.
+ */
+public final class Metrics {
+    // Counters
+    public final LongAdder logins = new LongAdder();         // 2FA passed by returning players
+    public final LongAdder registrations = new LongAdder();  // first OTP accepted
+    public final LongAdder ipBypasses = new LongAdder();
+    public final LongAdder sharedBypasses = new LongAdder(); // sessions published by another server
+    public final LongAdder failedAttempts = new LongAdder();
+    public final LongAdder bans = new LongAdder();
+    public final LongAdder timeouts = new LongAdder();
+
+    // Latencies
+    public final Histogram joinToAuth = new Histogram();     // join until 2FA passed
+    public final Histogram verify = new Histogram();         // OTP check plus its store write, on the verify executor
+    public final Histogram storeRead = new Histogram();
+    public final Histogram storeWrite = new Histogram();
+    public final Histogram storeSave = new Histogram();
+
+    // Sampled when read: name (optionally with {labels}) -> value
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+    public synchronized void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public synchronized Map<String, Long> sampleGauges() {
+        Map<String, Long> out = new LinkedHashMap<>();
+        gauges.forEach((name, value) -> out.put(name, value.getAsLong()));
+        return out;
+    }
+
+    public Map<String, LongAdder> counters() {
+        Map<String, LongAdder> out = new LinkedHashMap<>();
+        out.put("logins", logins);
+        out.put("registrations", registrations);
+        out.put("ip_bypasses", ipBypasses);
+        out.put("shared_session_bypasses", sharedBypasses);
+        out.put("failed_attempts", failedAttempts);
+        out.put("bans", bans);
+        out.put("timeouts", timeouts);
+        return out;
+    }
+
+    public Map<String, Histogram> histograms() {
+        Map<String, Histogram> out = new LinkedHashMap<>();
+        out.put("join_to_auth", joinToAuth);
+        out.put("verify", verify);
+        out.put("store_read", storeRead);
+        out.put("store_write", storeWrite);
+        out.put("store_save", storeSave);
+        return out;
+    }
+
+    // Prometheus text exposition: counters, gauges, and histograms as summaries in seconds
+    public String prometheus() {
+        StringBuilder sb = new StringBuilder(2048);
+        counters().forEach((name, value) -> {
+            sb.append("# TYPE twofa_").append(name).append("_total counter\n");
+            sb.append("twofa_").append(name).append("_total ").append(value.sum()).append('\n');
+        });
+        String lastType = null;
+        for (Map.Entry<String, Long> g : sampleGauges().entrySet()) {
+            String base = g.getKey().contains("{") ? g.getKey().substring(0, g.getKey().indexOf('{')) : g.getKey();
+            if (!base.equals(lastType)) {
+                sb.append("# TYPE twofa_").append(base).append(" gauge\n");
+                lastType = base;
+            }
+            sb.append("twofa_").append(g.getKey()).append(' ').append(g.getValue()).append('\n');
+        }
+        histograms().forEach((name, h) -> {
+            String metric = "twofa_" + name + "_seconds";
+            sb.append("# TYPE ").append(metric).append(" summary\n");
+            for (double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+                sb.append(metric).append("{quantile=\"").append(q).append("\"} ").append(seconds(h.quantile(q))).append('\n');
+            }
+            sb.append(metric).append("_sum ").append(seconds(h.sum())).append('\n');
+            sb.append(metric).append("_count ").append(h.count()).append('\n');
+        });
+        return sb.toString();
+    }
+
+    private static String seconds(long nanos) {
+        return String.valueOf(nanos / 1e9);
+    }
+}
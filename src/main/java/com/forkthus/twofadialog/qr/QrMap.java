@@ -1,6 +1,8 @@
 package com.forkthus.twofadialog.qr;
 
 import com.google.zxing.BarcodeFormat;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
 import com.google.zxing.qrcode.QRCodeWriter;
 import org.bukkit.Bukkit;
 //import org.bukkit.Color;
@@ -11,35 +13,74 @@ import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.MapMeta;
 import org.bukkit.map.MapCanvas;
+import org.bukkit.map.MapPalette;
 import org.bukkit.map.MapRenderer;
 import org.bukkit.map.MapView;
 import org.bukkit.persistence.PersistentDataType;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
 import static org.bukkit.Material.FILLED_MAP;
 
 public final class QrMap {
     public static final NamespacedKey QR_TAG = new NamespacedKey("twf", "qrmap");
 
+    private static final int SIZE = 120;      // QR size in map pixels (map is 128x128)
+    private static final int CACHE_MAX = 256; // provisioning URIs whose raster and map are kept
+
+    // QR pixels as map palette indices, ready to copy onto a canvas
+    record Raster(int ox, int oy, int width, int height, byte[] pixels) {
+        void blit(MapCanvas canvas) {
+            int i = 0;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    canvas.setPixel(ox + x, oy + y, pixels[i++]);
+                }
+            }
+        }
+    }
+
+    private static final class Cached {
+        final CompletableFuture<Raster> raster;
+        MapView view; // main thread only
+        Cached(CompletableFuture<Raster> raster) { this.raster = raster; }
+    }
+
+    private static final Map<String, Cached> CACHE = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) { return size() > CACHE_MAX; }
+    });
+    private static final ExecutorService ENCODER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "TwoFADialog-QR");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final LongAdder ENCODED = new LongAdder();  // rasters built (cache misses)
+    private static final LongAdder RENDERED = new LongAdder(); // rasters copied onto a map canvas
+    private static byte black, white;     // palette indices, resolved on the server thread
+    private static boolean paletteReady;
+
+    // Starts encoding in the background so the map is ready by the time it is handed out
+    public static void prepare(String text) {
+        cached(text);
+    }
+
     public static ItemStack make(Player p, String text) {
         World w = p.getWorld();
-        MapView view = Bukkit.createMap(w);
-        view.getRenderers().forEach(view::removeRenderer);
-        view.addRenderer(new MapRenderer(false) {
-            private boolean drawn = false;
-            @Override public void render(MapView map, MapCanvas canvas, Player player) {
-                if (drawn) return;
-                drawn = true;
-                try {
-                    var matrix = new QRCodeWriter().encode(text, BarcodeFormat.QR_CODE, 120, 120);
-                    int ox = (128 - matrix.getWidth()) / 2, oy = (128 - matrix.getHeight()) / 2;
-                    for (int y = 0; y < matrix.getHeight(); y++) {
-                        for (int x = 0; x < matrix.getWidth(); x++) {
-                            canvas.setPixelColor(ox + x, oy + y, matrix.get(x, y) ? Color.BLACK : Color.WHITE);
-                        }
-                    }
-                } catch (Exception e) { e.printStackTrace(); }
-            }
-        });
+        Cached cached = cached(text);
+        MapView view = cached.view;
+        if (view == null || !w.equals(view.getWorld())) {
+            view = Bukkit.createMap(w);
+            view.getRenderers().forEach(view::removeRenderer);
+            view.addRenderer(new RasterRenderer(cached.raster));
+            cached.view = view; // re-sent maps reuse the same map id and canvas
+        }
 
         ItemStack mapItem = new ItemStack(FILLED_MAP);
         MapMeta meta = (MapMeta) mapItem.getItemMeta();
@@ -49,4 +90,73 @@ public final class QrMap {
         mapItem.setItemMeta(meta);
         return mapItem;
     }
+
+    // Drops the cached raster and map once the player has enrolled
+    public static void forget(String text) {
+        CACHE.remove(text);
+    }
+
+    public static long encoded() { return ENCODED.sum(); }
+    public static long rendered() { return RENDERED.sum(); }
+
+    public static void shutdown() {
+        ENCODER.shutdownNow();
+        CACHE.clear();
+    }
+
+    private static Cached cached(String text) {
+        resolvePalette();
+        byte b = black, wh = white;
+        return CACHE.computeIfAbsent(text, t -> new Cached(CompletableFuture.supplyAsync(() -> rasterize(t, b, wh), ENCODER)));
+    }
+
+    @SuppressWarnings("deprecation") // palette indices are exactly what MapCanvas.setPixel wants
+    private static void resolvePalette() {
+        if (paletteReady) return;
+        black = MapPalette.matchColor(Color.BLACK);
+        white = MapPalette.matchColor(Color.WHITE);
+        paletteReady = true;
+    }
+
+    static Raster rasterize(String text, byte black, byte white) {
+        try {
+            BitMatrix matrix = encode(text);
+            ENCODED.increment();
+            int w = matrix.getWidth(), h = matrix.getHeight();
+            byte[] pixels = new byte[w * h];
+            int i = 0;
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    pixels[i++] = matrix.get(x, y) ? black : white;
+                }
+            }
+            return new Raster((128 - w) / 2, (128 - h) / 2, w, h, pixels);
+        } catch (WriterException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    static BitMatrix encode(String text) throws WriterException {
+        return new QRCodeWriter().encode(text, BarcodeFormat.QR_CODE, SIZE, SIZE);
+    }
+
+    // Copies the cached raster once it is ready; no encoding or colour matching on the server thread
+    private static final class RasterRenderer extends MapRenderer {
+        private final CompletableFuture<Raster> raster;
+        private boolean drawn = false;
+
+        RasterRenderer(CompletableFuture<Raster> raster) {
+            super(false);
+            this.raster = raster;
+        }
+
+        @Override public void render(MapView map, MapCanvas canvas, Player player) {
+            if (drawn || !raster.isDone()) return; // still encoding: try again next frame
+            drawn = true;
+            try {
+                raster.join().blit(canvas);
+                RENDERED.increment();
+            } catch (CompletionException e) { e.printStackTrace(); }
+        }
+    }
 }
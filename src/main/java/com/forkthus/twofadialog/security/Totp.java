@@ -5,14 +5,34 @@ import org.apache.commons.codec.binary.Base32;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.net.URLEncoder;
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class Totp {
     private static final SecureRandom RNG = new SecureRandom();
     private static final Base32 B32 = new Base32(false); // no padding
+    private static final int KEY_CACHE_MAX = 4096;       // decoded keys kept for players currently authenticating
+
+    private static final Map<String, SecretKeySpec> KEYS = new ConcurrentHashMap<>();
+
+    // Per-thread HMAC state: the Mac stays initialized with the last key it saw, buffers are reused
+    private static final class Hmac {
+        final Mac mac;
+        final byte[] msg = new byte[8];
+        final byte[] out = new byte[20];
+        SecretKeySpec key;
+
+        Hmac() {
+            try {
+                mac = Mac.getInstance("HmacSHA1");
+            } catch (GeneralSecurityException e) { throw new IllegalStateException(e); }
+        }
+    }
+    private static final ThreadLocal<Hmac> HMAC = ThreadLocal.withInitial(Hmac::new);
 
     public static String newBase32Secret() {
         byte[] buf = new byte[20]; // 160-bit
@@ -28,33 +48,80 @@ public final class Totp {
     }
 
     public static boolean verify(String base32Secret, String code, int skewSteps) {
-        if (code == null || !code.matches("\\d{6}")) return false;
-        long step = Instant.now().getEpochSecond() / 30;
-        for (int i = -skewSteps; i <= skewSteps; i++) {
-            if (code.equals(gen(base32Secret, step + i))) return true;
+        return verify(base32Secret, parseCode(code), skewSteps);
+    }
+
+    public static boolean verify(String base32Secret, int code, int skewSteps) {
+        return verify(base32Secret, code, skewSteps, Instant.now().getEpochSecond() / 30);
+    }
+
+    // Checks every step in the window without exiting early, so timing does not reveal which step matched
+    public static boolean verify(String base32Secret, int code, int skewSteps, long step) {
+        if (base32Secret == null || code < 0 || code > 999_999) return false;
+        Hmac h = prepare(base32Secret);
+        int skew = Math.max(0, skewSteps);
+        int found = 0;
+        for (long s = step - skew; s <= step + skew; s++) {
+            found |= ((code(h, s) ^ code) - 1) >>> 31; // 1 only when equal (both values are non-negative)
         }
-        return false;
+        return found != 0;
+    }
+
+    public static int generate(String base32Secret, long step) {
+        return code(prepare(base32Secret), step);
     }
 
-    private static String gen(String base32Secret, long step) {
-        byte[] key = B32.decode(base32Secret);
-        byte[] msg = ByteBuffer.allocate(8).putLong(step).array();
-        byte[] hmac = hmacSha1(key, msg);
+    // "123456" -> 123456; -1 unless exactly six ASCII digits
+    public static int parseCode(String code) {
+        if (code == null || code.length() != 6) return -1;
+        int v = 0;
+        for (int i = 0; i < 6; i++) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+
+    // Drops a cached key once its player has finished authenticating
+    public static void forget(String base32Secret) {
+        if (base32Secret != null) KEYS.remove(base32Secret);
+    }
+
+    private static Hmac prepare(String base32Secret) {
+        SecretKeySpec key = KEYS.get(base32Secret);
+        if (key == null) {
+            if (KEYS.size() >= KEY_CACHE_MAX) KEYS.clear();
+            key = new SecretKeySpec(B32.decode(base32Secret), "HmacSHA1");
+            KEYS.put(base32Secret, key);
+        }
+        Hmac h = HMAC.get();
+        if (h.key != key) {
+            try {
+                h.mac.init(key);
+            } catch (GeneralSecurityException e) { throw new IllegalStateException(e); }
+            h.key = key;
+        }
+        return h;
+    }
+
+    private static int code(Hmac h, long step) {
+        byte[] msg = h.msg;
+        for (int i = 7; i >= 0; i--) {
+            msg[i] = (byte) step;
+            step >>>= 8;
+        }
+        byte[] hmac = h.out;
+        try {
+            h.mac.update(msg, 0, 8);
+            h.mac.doFinal(hmac, 0); // resets the Mac, key stays initialized
+        } catch (GeneralSecurityException e) { throw new IllegalStateException(e); }
         int off = hmac[hmac.length - 1] & 0x0F;
         int bin = ((hmac[off] & 0x7F) << 24) |
                 ((hmac[off+1] & 0xFF) << 16) |
                 ((hmac[off+2] & 0xFF) << 8) |
                 (hmac[off+3] & 0xFF);
-        int otp = bin % 1_000_000;
-        return String.format("%06d", otp);
-    }
-
-    private static byte[] hmacSha1(byte[] key, byte[] msg) {
-        try {
-            Mac mac = Mac.getInstance("HmacSHA1");
-            mac.init(new SecretKeySpec(key, "HmacSHA1"));
-            return mac.doFinal(msg);
-        } catch (Exception e) { throw new RuntimeException(e); }
+        return bin % 1_000_000;
     }
 
     private static String url(String s) {
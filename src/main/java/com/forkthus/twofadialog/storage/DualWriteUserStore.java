@@ -0,0 +1,349 @@
+package com.forkthus.twofadialog.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+/**
+ * The live store while a migration copies users into another backend: reads come from the current store and
+ * every write is mirrored into the next one. Reads take no lock, and copy and verify batches do not block writes
+ * either: a write that lands on a user of the batch in flight marks them, and the batch copies marked users again
+ * under their stripe, so a batch read from the current store can never leave an older record behind a newer
+ * mirrored write. Users whose mirrored write failed are remembered until a verify pass or {@link #retire()}
+ * copies them again. After retire() only the next store is used.
+ */
+public final class DualWriteUserStore implements UserStore {
+    private final UserStore current;
+    private final UserStore next;
+    private final Logger logger;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // shared per write, exclusive per admin batch
+    private final Object[] stripes = new Object[64]; // orders the write and its mirror per user
+    private volatile Set<UUID> copying = Set.of();  // users of the copy batch in flight
+    private final Set<UUID> raced = ConcurrentHashMap.newKeySet(); // of those, users written while it ran
+    private final AtomicLong mirrorFailures = new AtomicLong();
+    private final Set<UUID> unmirrored = ConcurrentHashMap.newKeySet(); // failed mirrors not yet verified again
+    private volatile boolean retired;
+
+    // Result of checking one batch: users rewritten into the next store, and a checksum over the batch
+    public record Verified(int repaired, long checksum) { }
+
+    public DualWriteUserStore(UserStore current, UserStore next, Logger logger) {
+        this.current = current;
+        this.next = next;
+        this.logger = logger;
+        for (int i = 0; i < stripes.length; i++) stripes[i] = new Object();
+    }
+
+    /* ------------ UserStore ------------ */
+
+    @Override public boolean hasSecret(UUID id) { return read(s -> s.hasSecret(id)); }
+    @Override public String getSecret(UUID id) { return read(s -> s.getSecret(id)); }
+    @Override public void setSecret(UUID id, String base32) { write(id, s -> { s.setSecret(id, base32); return null; }); }
+
+    @Override public boolean isEnrolled(UUID id) { return read(s -> s.isEnrolled(id)); }
+    @Override public void setEnrolled(UUID id, boolean v) { write(id, s -> { s.setEnrolled(id, v); return null; }); }
+
+    @Override public String getLastIP(UUID id) { return read(s -> s.getLastIP(id)); }
+    @Override public void setLastIP(UUID id, String ip) { write(id, s -> { s.setLastIP(id, ip); return null; }); }
+
+    @Override public long getLastLoginTime(UUID id) { return read(s -> s.getLastLoginTime(id)); }
+    @Override public void setLastLoginTime(UUID id, long timestamp) { write(id, s -> { s.setLastLoginTime(id, timestamp); return null; }); }
+
+    @Override public int getFailedAttempts(UUID id) { return read(s -> s.getFailedAttempts(id)); }
+    @Override public void setFailedAttempts(UUID id, int attempts) { write(id, s -> { s.setFailedAttempts(id, attempts); return null; }); }
+
+    @Override public long getBanExpiry(UUID id) { return read(s -> s.getBanExpiry(id)); }
+    @Override public void setBanExpiry(UUID id, long timestamp) { write(id, s -> { s.setBanExpiry(id, timestamp); return null; }); }
+
+    @Override public void removeUser(UUID id) { write(id, s -> { s.removeUser(id); return null; }); }
+
+    @Override public UserRecord load(UUID id) { return read(s -> s.load(id)); }
+    @Override public UserRecord update(UUID id, UnaryOperator<UserRecord> fn) { return write(id, s -> s.update(id, fn)); }
+    @Override public Map<UUID, UserRecord> loadAll(Collection<UUID> ids) { return read(s -> s.loadAll(ids)); }
+    @Override public Collection<UUID> ids() { return read(UserStore::ids); }
+    @Override public long storageBytes() { return read(UserStore::storageBytes); }
+    @Override public boolean accepts(UserRecord record) { return (retired || current.accepts(record)) && next.accepts(record); }
+
+    // Batches come from admin jobs only, so they simply take the lock exclusively
+    @Override public void saveAll(Map<UUID, UserRecord> records) {
+        lock.writeLock().lock();
+        try {
+            if (retired) { next.saveAll(records); return; }
+            current.saveAll(records);
+            mirror(records.keySet(), () -> next.saveAll(records));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Mirrors the resulting records of the whole batch, since only the current store knows which users it skipped
+    @Override public int saveAllIfAbsent(Map<UUID, UserRecord> records) {
+        lock.writeLock().lock();
+        try {
+            if (retired) return next.saveAllIfAbsent(records);
+            int written = current.saveAllIfAbsent(records);
+            if (written > 0) mirror(records.keySet(), () -> {
+                Map<UUID, UserRecord> after = current.loadAll(records.keySet());
+                after.values().removeIf(r -> r.equals(UserRecord.EMPTY));
+                next.saveAll(after);
+            });
+            return written;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override public void removeAll(Collection<UUID> ids) {
+        lock.writeLock().lock();
+        try {
+            if (retired) { next.removeAll(ids); return; }
+            current.removeAll(ids);
+            mirror(ids, () -> next.removeAll(ids));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override public List<UUID> removeAllIf(Collection<UUID> ids, BiPredicate<UUID, UserRecord> test) {
+        lock.writeLock().lock();
+        try {
+            if (retired) return next.removeAllIf(ids, test);
+            List<UUID> removed = current.removeAllIf(ids, test);
+            if (!removed.isEmpty()) mirror(removed, () -> next.removeAll(removed));
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override public void save() {
+        lock.readLock().lock();
+        try {
+            if (!retired) current.save();
+            next.save();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Server shutdown mid-migration: both stores are still open
+    @Override public void close() {
+        lock.writeLock().lock();
+        try {
+            if (!retired) current.close();
+            next.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* ------------ Migration ------------ */
+
+    // Copies these users as they are now; users gone from the current store are removed from the next one
+    public int copy(List<UUID> ids) {
+        lock.readLock().lock(); // only retire() and admin batches wait for it
+        try {
+            return copyBatch(ids);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Compares both stores for these users, copies any that differ, then checks that they match.
+    // Throws IllegalStateException when the next store does not hold what was written to it.
+    public Verified verify(List<UUID> ids) {
+        lock.readLock().lock();
+        try {
+            unmirrored.removeAll(ids); // checked below; mirrors failing from here on are kept for retire()
+            try {
+                return compare(ids);
+            } catch (RuntimeException e) {
+                unmirrored.addAll(ids); // not settled, so a later retire() checks them again
+                throw e;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Caller holds the read lock
+    private Verified compare(List<UUID> ids) {
+        Map<UUID, UserRecord> want = current.loadAll(ids);
+        Map<UUID, UserRecord> have = next.loadAll(ids);
+        List<UUID> differ = new ArrayList<>();
+        for (UUID id : ids) {
+            if (!want.get(id).equals(have.get(id))) differ.add(id);
+        }
+        if (!differ.isEmpty()) {
+            copyBatch(differ);
+            Map<UUID, UserRecord> now = current.loadAll(differ);
+            Map<UUID, UserRecord> got = next.loadAll(differ);
+            for (UUID id : differ) {
+                UserRecord r = now.get(id);
+                // Still different: a write may be between its two stores, so settle it under the stripe
+                if (!r.equals(got.get(id))) r = recopy(id, true);
+                want.put(id, r);
+            }
+        }
+        long checksum = 0;
+        for (UUID id : ids) {
+            UserRecord r = want.get(id);
+            if (!r.equals(UserRecord.EMPTY)) checksum += checksum(id, r);
+        }
+        return new Verified(differ.size(), checksum);
+    }
+
+    // Removes users that only the next store has (left over from an earlier attempt), then returns
+    // the user count of each store as {current, next}
+    public long[] reconcile() {
+        lock.writeLock().lock();
+        try {
+            Collection<UUID> ids = current.ids();
+            List<UUID> stale = new ArrayList<>(next.ids());
+            stale.removeAll(new HashSet<>(ids));
+            if (!stale.isEmpty()) next.removeAll(stale);
+            return new long[] { ids.size(), next.ids().size() };
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Waits for calls in flight, verifies the users whose mirror failed since their verify pass, then sends
+    // everything to the next store; the caller closes the current one. Returns the users repaired. Holding the
+    // lock throughout, no write can fail its mirror between that check and the switch. Throws
+    // IllegalStateException, without retiring, when a user still differs.
+    public int retire() {
+        lock.writeLock().lock();
+        try {
+            int repaired = unmirrored.isEmpty() ? 0 : verify(new ArrayList<>(unmirrored)).repaired();
+            retired = true;
+            return repaired;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Waits for calls in flight; used before closing the next store after a failed migration
+    public void drain() {
+        lock.writeLock().lock();
+        lock.writeLock().unlock();
+    }
+
+    public long mirrorFailures() {
+        return mirrorFailures.get();
+    }
+
+    // Order-independent over a set of users; equal records give equal sums in any backend
+    public static long checksum(UUID id, UserRecord r) {
+        long h = id.getMostSignificantBits() * 31 + id.getLeastSignificantBits();
+        h = h * 31 + Objects.hashCode(r.secret());
+        h = h * 31 + (r.enrolled() ? 1 : 0);
+        h = h * 31 + Objects.hashCode(r.lastIp());
+        h = h * 31 + r.lastLogin();
+        h = h * 31 + r.failedAttempts();
+        h = h * 31 + r.banExpiry();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        return h ^ (h >>> 33);
+    }
+
+    /* ------------ Internals ------------ */
+
+    // No lock, so nothing a migration does can stall a read. A read that races retire() and finds the current
+    // store closed is retried on the next one.
+    private <T> T read(Function<UserStore, T> fn) {
+        if (retired) return fn.apply(next);
+        try {
+            return fn.apply(current);
+        } catch (RuntimeException e) {
+            if (retired) return fn.apply(next);
+            throw e;
+        }
+    }
+
+    // One read and one write per batch, without blocking writers. A write to a batch user is marked after it
+    // reaches the current store: either the batch read already saw it, or the user is copied again here.
+    private int copyBatch(List<UUID> ids) {
+        raced.clear();
+        copying = new HashSet<>(ids);
+        int copied;
+        try {
+            Map<UUID, UserRecord> records = current.loadAll(ids);
+            Map<UUID, UserRecord> present = new HashMap<>(records.size() * 2);
+            List<UUID> absent = new ArrayList<>();
+            for (UUID id : ids) {
+                UserRecord r = records.get(id);
+                if (r.equals(UserRecord.EMPTY)) absent.add(id);
+                else present.put(id, r);
+            }
+            if (!present.isEmpty()) next.saveAll(present);
+            if (!absent.isEmpty()) next.removeAll(absent);
+            copied = present.size();
+        } finally {
+            copying = Set.of();
+        }
+        for (UUID id : raced) recopy(id, false);
+        raced.clear();
+        return copied;
+    }
+
+    // Copies one user under their stripe, so no write to them is half done; with check, throws when the next
+    // store then does not hold the record. Returns the record copied.
+    private UserRecord recopy(UUID id, boolean check) {
+        synchronized (stripe(id)) {
+            UserRecord r = current.load(id);
+            if (r.equals(UserRecord.EMPTY)) next.removeUser(id);
+            else next.update(id, before -> r);
+            if (check && !r.equals(next.load(id))) throw new IllegalStateException("user " + id + " differs after copying");
+            return r;
+        }
+    }
+
+    private Object stripe(UUID id) {
+        return stripes[(id.hashCode() & 0x7fffffff) % stripes.length];
+    }
+
+    // Writes the current store, then copies the user's resulting record into the next one. Two writes to the
+    // same user share a stripe, so an older mirror can never land after a newer one.
+    private <T> T write(UUID id, Function<UserStore, T> fn) {
+        lock.readLock().lock();
+        try {
+            if (retired) return fn.apply(next);
+            synchronized (stripe(id)) {
+                T result = fn.apply(current);
+                if (copying.contains(id)) raced.add(id);
+                mirror(List.of(id), () -> {
+                    UserRecord r = current.load(id);
+                    if (r.equals(UserRecord.EMPTY)) next.removeUser(id);
+                    else next.update(id, before -> r);
+                });
+                return result;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // A failed mirror write never fails the live write; its users are verified again before the switch
+    private void mirror(Collection<UUID> ids, Runnable write) {
+        try {
+            write.run();
+        } catch (RuntimeException e) {
+            unmirrored.addAll(ids);
+            if (mirrorFailures.getAndIncrement() == 0) logger.warning("Could not mirror a write into the new storage, it will be copied again before the switch: " + e);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.forkthus.twofadialog.storage;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Parses literal IPv4 and IPv6 addresses. Anything else is rejected before it reaches
+ * InetAddress, so a hostname in a stored or configured address never triggers a DNS lookup.
+ */
+public final class IpLiteral {
+    private IpLiteral() { }
+
+    // Raw address bytes (4 or 16); throws IllegalArgumentException for anything but a literal address
+    public static byte[] parse(String host) {
+        boolean v6 = host.indexOf(':') >= 0;
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            boolean ok = (c >= '0' && c <= '9') || c == '.' || (v6 && (c == ':' || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')));
+            if (!ok) throw new IllegalArgumentException("Not an IP address: " + host);
+        }
+        if (!v6 && host.chars().filter(c -> c == '.').count() != 3) throw new IllegalArgumentException("Not an IP address: " + host);
+        try {
+            return InetAddress.getByName(host).getAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Not an IP address: " + host);
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package com.forkthus.twofadialog.storage;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiPredicate;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+/**
+ * One-row-per-user SQL store (MySQL/MariaDB or SQLite) behind a HikariCP pool.
+ * Reads are served from a row cache that the async pre-login {@link #load(UUID)} fills off the server thread;
+ * writes update the cache and are coalesced into batched upserts on a background writer.
+ */
+public final class JdbcUserStore implements UserStore {
+    public enum Dialect { MYSQL, SQLITE }
+
+    private static final long EVICT_AFTER_MS = 10 * 60 * 1000L;
+    private static final int SELECT_BATCH = 100; // ids per SELECT ... IN (...), unused slots repeat the last id
+    private static final String COLUMNS = "uuid, secret, enrolled, last_ip, last_login, failed_attempts, ban_expiry";
+
+    private static final class Cached {
+        volatile UserRecord row; // null = no row in the table
+        volatile long touched = System.currentTimeMillis();
+        boolean evicted; // guarded by this
+        Cached(UserRecord row) { this.row = row; }
+    }
+
+    private final HikariDataSource ds;
+    private final File file; // users.db for sqlite, null for a database server
+    private final Logger logger;
+    private final String selectOneSql;
+    private final String selectSql;
+    private final String upsertSql;
+    private final String deleteSql;
+    private final String idsSql;
+    private final Map<UUID, Cached> cache = new ConcurrentHashMap<>();
+    private final Map<UUID, Cached> dirty = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "TwoFADialog-SQL-Writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static JdbcUserStore sqlite(File dataFolder, String table, int poolSize, Logger logger) throws IOException {
+        HikariConfig hc = new HikariConfig();
+        File file = new File(dataFolder, "users.db");
+        hc.setJdbcUrl("jdbc:sqlite:" + file.getAbsolutePath());
+        hc.setDriverClassName("org.sqlite.JDBC");
+        hc.setConnectionInitSql("PRAGMA busy_timeout=5000");
+        hc.setMaximumPoolSize(Math.max(1, poolSize));
+        return new JdbcUserStore(hc, Dialect.SQLITE, table, file, logger);
+    }
+
+    public static JdbcUserStore mysql(String host, int port, String database, String username, String password,
+                                      String table, int poolSize, Logger logger) throws IOException {
+        HikariConfig hc = new HikariConfig();
+        hc.setJdbcUrl("jdbc:mysql://" + host + ":" + port + "/" + database);
+        hc.setUsername(username);
+        hc.setPassword(password);
+        hc.setMaximumPoolSize(Math.max(1, poolSize));
+        hc.addDataSourceProperty("cachePrepStmts", "true");
+        hc.addDataSourceProperty("prepStmtCacheSize", "64");
+        hc.addDataSourceProperty("useServerPrepStmts", "true");
+        hc.addDataSourceProperty("rewriteBatchedStatements", "true");
+        return new JdbcUserStore(hc, Dialect.MYSQL, table, null, logger);
+    }
+
+    private JdbcUserStore(HikariConfig hc, Dialect dialect, String table, File file, Logger logger) throws IOException {
+        if (!table.matches("[A-Za-z0-9_]+")) throw new IOException("Invalid table name '" + table + "'");
+        this.logger = logger;
+        this.file = file;
+        this.selectOneSql = "SELECT " + COLUMNS + " FROM " + table + " WHERE uuid = ?";
+        this.selectSql = "SELECT " + COLUMNS + " FROM " + table + " WHERE uuid IN (?" + ", ?".repeat(SELECT_BATCH - 1) + ")";
+        this.deleteSql = "DELETE FROM " + table + " WHERE uuid = ?";
+        this.idsSql = "SELECT uuid FROM " + table;
+        String insert = "INSERT INTO " + table + " (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+        this.upsertSql = switch (dialect) {
+            case MYSQL -> insert + " ON DUPLICATE KEY UPDATE secret = VALUES(secret), enrolled = VALUES(enrolled),"
+                    + " last_ip = VALUES(last_ip), last_login = VALUES(last_login),"
+                    + " failed_attempts = VALUES(failed_attempts), ban_expiry = VALUES(ban_expiry)";
+            case SQLITE -> insert + " ON CONFLICT(uuid) DO UPDATE SET secret = excluded.secret, enrolled = excluded.enrolled,"
+                    + " last_ip = excluded.last_ip, last_login = excluded.last_login,"
+                    + " failed_attempts = excluded.failed_attempts, ban_expiry = excluded.ban_expiry";
+        };
+
+        hc.setPoolName("TwoFADialog-Pool");
+        try {
+            this.ds = new HikariDataSource(hc);
+        } catch (RuntimeException e) {
+            throw new IOException("Could not connect to " + hc.getJdbcUrl() + ": " + e.getMessage(), e);
+        }
+        try (Connection con = ds.getConnection(); Statement st = con.createStatement()) {
+            if (dialect == Dialect.SQLITE) st.execute("PRAGMA journal_mode=WAL");
+            st.execute("CREATE TABLE IF NOT EXISTS " + table + " ("
+                    + "uuid CHAR(36) NOT NULL PRIMARY KEY,"
+                    + " secret VARCHAR(128),"
+                    + " enrolled BOOLEAN NOT NULL DEFAULT FALSE,"
+                    + " last_ip VARCHAR(45),"
+                    + " last_login BIGINT NOT NULL DEFAULT 0,"
+                    + " failed_attempts INT NOT NULL DEFAULT 0,"
+                    + " ban_expiry BIGINT NOT NULL DEFAULT 0)");
+        } catch (SQLException e) {
+            ds.close();
+            throw new IOException("Could not create table " + table + ": " + e.getMessage(), e);
+        }
+        writer.scheduleWithFixedDelay(this::evictIdle, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /* ------------ UserStore ------------ */
+
+    @Override public boolean hasSecret(UUID id) { return load(id).hasSecret(); }
+    @Override public String getSecret(UUID id) { return load(id).secret(); }
+    @Override public void setSecret(UUID id, String base32) { update(id, r -> r.withSecret(base32)); }
+
+    @Override public boolean isEnrolled(UUID id) { return load(id).enrolled(); }
+    @Override public void setEnrolled(UUID id, boolean v) { update(id, r -> r.withEnrolled(v)); }
+
+    @Override public String getLastIP(UUID id) { return load(id).lastIp(); }
+    @Override public void setLastIP(UUID id, String ip) { update(id, r -> r.withLastIp(ip)); }
+
+    @Override public long getLastLoginTime(UUID id) { return load(id).lastLogin(); }
+    @Override public void setLastLoginTime(UUID id, long timestamp) { update(id, r -> r.withLastLogin(timestamp)); }
+
+    @Override public int getFailedAttempts(UUID id) { return load(id).failedAttempts(); }
+    @Override public void setFailedAttempts(UUID id, int attempts) { update(id, r -> r.withFailedAttempts(attempts)); }
+
+    @Override public long getBanExpiry(UUID id) { return load(id).banExpiry(); }
+    @Override public void setBanExpiry(UUID id, long timestamp) { update(id, r -> r.withBanExpiry(timestamp)); }
+
+    @Override public void removeUser(UUID id) {
+        put(id, null);
+        scheduleFlush();
+    }
+
+    @Override public UserRecord load(UUID id) {
+        UserRecord r = cached(id).row;
+        return r == null ? UserRecord.EMPTY : r;
+    }
+
+    @Override public UserRecord update(UUID id, UnaryOperator<UserRecord> fn) {
+        UserRecord after = apply(id, fn);
+        scheduleFlush();
+        return after;
+    }
+
+    // Cache misses are fetched together, SELECT_BATCH ids per round trip
+    @Override public Map<UUID, UserRecord> loadAll(Collection<UUID> ids) {
+        Map<UUID, UserRecord> out = new HashMap<>(ids.size() * 2);
+        List<UUID> misses = new ArrayList<>();
+        for (UUID id : ids) {
+            Cached c = cache.get(id);
+            if (c == null) { misses.add(id); continue; }
+            c.touched = System.currentTimeMillis();
+            out.put(id, c.row == null ? UserRecord.EMPTY : c.row);
+        }
+        if (!misses.isEmpty()) {
+            Map<UUID, UserRecord> fetched = fetch(misses);
+            for (UUID id : misses) {
+                Cached loaded = new Cached(fetched.get(id));
+                Cached c = cache.putIfAbsent(id, loaded);
+                if (c == null) c = loaded;
+                out.put(id, c.row == null ? UserRecord.EMPTY : c.row);
+            }
+        }
+        return out;
+    }
+
+    // Pending writes are flushed first so the table holds every cached change
+    @Override public Collection<UUID> ids() {
+        flush();
+        Set<UUID> out = new HashSet<>();
+        try (Connection con = ds.getConnection(); Statement st = con.createStatement();
+             ResultSet rs = st.executeQuery(idsSql)) {
+            while (rs.next()) out.add(UUID.fromString(rs.getString(1)));
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not list 2FA users: " + e.getMessage(), e);
+        }
+        for (var entry : cache.entrySet()) {
+            if (entry.getValue().row != null) out.add(entry.getKey());
+            else out.remove(entry.getKey());
+        }
+        return out;
+    }
+
+    // The batch lands in the cache first, then goes out in one writer transaction
+    @Override public void saveAll(Map<UUID, UserRecord> records) {
+        records.forEach((id, r) -> put(id, r));
+        scheduleFlush();
+    }
+
+    // Misses are fetched in one loadAll; each user is then checked and written under its cache entry's lock
+    @Override public int saveAllIfAbsent(Map<UUID, UserRecord> records) {
+        loadAll(records.keySet());
+        int written = 0;
+        for (Map.Entry<UUID, UserRecord> e : records.entrySet()) {
+            boolean[] wrote = new boolean[1];
+            apply(e.getKey(), before -> (wrote[0] = !before.hasSecret()) ? e.getValue() : before);
+            if (wrote[0]) written++;
+        }
+        if (written > 0) scheduleFlush();
+        return written;
+    }
+
+    @Override public void removeAll(Collection<UUID> ids) {
+        for (UUID id : ids) put(id, null);
+        scheduleFlush();
+    }
+
+    // Like saveAllIfAbsent: one loadAll for the misses, then a check and remove under each cache entry's lock
+    @Override public List<UUID> removeAllIf(Collection<UUID> ids, BiPredicate<UUID, UserRecord> test) {
+        loadAll(ids);
+        List<UUID> removed = new ArrayList<>();
+        for (UUID id : ids) {
+            boolean[] gone = new boolean[1];
+            apply(id, r -> (gone[0] = !r.equals(UserRecord.EMPTY) && test.test(id, r)) ? null : r);
+            if (gone[0]) removed.add(id);
+        }
+        if (!removed.isEmpty()) scheduleFlush();
+        return removed;
+    }
+
+    @Override public void save() { flush(); }
+
+    @Override public long storageBytes() {
+        if (file == null) return -1;
+        return file.length() + new File(file.getPath() + "-wal").length(); // WAL mode keeps recent writes beside the db
+    }
+
+    @Override public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush(); // final blocking flush
+        ds.close();
+    }
+
+    /* ------------ Cache ------------ */
+
+    // Replaces the cached row without reading it first; the writer turns an absent row into a DELETE
+    // update() without scheduling the flush
+    private UserRecord apply(UUID id, UnaryOperator<UserRecord> fn) {
+        while (true) {
+            Cached c = cached(id);
+            synchronized (c) {
+                if (c.evicted) continue; // lost a race with eviction, reload
+                UserRecord after = fn.apply(c.row == null ? UserRecord.EMPTY : c.row);
+                c.row = after;
+                dirty.put(id, c);
+                return after;
+            }
+        }
+    }
+
+    private void put(UUID id, UserRecord row) {
+        while (true) {
+            Cached c = cache.computeIfAbsent(id, k -> new Cached(null));
+            synchronized (c) {
+                if (c.evicted) continue;
+                c.row = row;
+                c.touched = System.currentTimeMillis();
+                dirty.put(id, c);
+            }
+            return;
+        }
+    }
+
+    // Blocks on a cache miss. The plugin calls the store only from pre-login, its auth executor and the bulk
+    // worker, never on the server thread, so a miss costs a worker a round trip rather than the tick.
+    private Cached cached(UUID id) {
+        Cached c = cache.get(id);
+        if (c == null) {
+            Cached loaded = new Cached(fetch(List.of(id)).get(id));
+            c = cache.putIfAbsent(id, loaded);
+            if (c == null) c = loaded;
+        }
+        c.touched = System.currentTimeMillis();
+        return c;
+    }
+
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - EVICT_AFTER_MS;
+        for (var entry : cache.entrySet()) {
+            Cached c = entry.getValue();
+            if (c.touched >= cutoff) continue;
+            synchronized (c) {
+                if (dirty.containsKey(entry.getKey())) continue;
+                c.evicted = true;
+                cache.remove(entry.getKey(), c);
+            }
+        }
+    }
+
+    // Rows for the given ids; ids without a row are missing from the result
+    private Map<UUID, UserRecord> fetch(List<UUID> ids) {
+        Map<UUID, UserRecord> out = new HashMap<>(ids.size() * 2);
+        boolean single = ids.size() == 1;
+        try (Connection con = ds.getConnection(); PreparedStatement ps = con.prepareStatement(single ? selectOneSql : selectSql)) {
+            for (int from = 0; from < ids.size(); from += SELECT_BATCH) {
+                int to = Math.min(ids.size(), from + SELECT_BATCH);
+                int params = single ? 1 : SELECT_BATCH;
+                for (int i = 0; i < params; i++) {
+                    ps.setString(i + 1, ids.get(Math.min(from + i, to - 1)).toString());
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        out.put(UUID.fromString(rs.getString(1)), new UserRecord(rs.getString(2), rs.getBoolean(3),
+                                rs.getString(4), rs.getLong(5), rs.getInt(6), rs.getLong(7)));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not load 2FA data for " + ids.size() + " users: " + e.getMessage(), e);
+        }
+        return out;
+    }
+
+    /* ------------ Writer ------------ */
+
+    private void scheduleFlush() {
+        if (flushQueued.compareAndSet(false, true)) {
+            try {
+                writer.execute(() -> {
+                    flushQueued.set(false);
+                    flush();
+                });
+            } catch (RejectedExecutionException shuttingDown) {
+                flushQueued.set(false); // close() does the final flush
+            }
+        }
+    }
+
+    // Writes the latest cached state of every dirty user in one transaction.
+    private void flush() {
+        synchronized (flushLock) {
+            if (dirty.isEmpty()) return;
+            List<UUID> ids = new ArrayList<>(dirty.size());
+            List<Cached> rows = new ArrayList<>(dirty.size());
+            for (UUID id : dirty.keySet()) {
+                Cached c = dirty.remove(id);
+                if (c == null) continue;
+                ids.add(id);
+                rows.add(c);
+            }
+            try (Connection con = ds.getConnection()) {
+                con.setAutoCommit(false);
+                try (PreparedStatement upsert = con.prepareStatement(upsertSql);
+                     PreparedStatement delete = con.prepareStatement(deleteSql)) {
+                    for (int i = 0; i < ids.size(); i++) {
+                        UserRecord r = rows.get(i).row;
+                        String uuid = ids.get(i).toString();
+                        if (r == null) {
+                            delete.setString(1, uuid);
+                            delete.addBatch();
+                            continue;
+                        }
+                        upsert.setString(1, uuid);
+                        upsert.setString(2, r.secret());
+                        upsert.setBoolean(3, r.enrolled());
+                        upsert.setString(4, r.lastIp());
+                        upsert.setLong(5, r.lastLogin());
+                        upsert.setInt(6, r.failedAttempts());
+                        upsert.setLong(7, r.banExpiry());
+                        upsert.addBatch();
+                    }
+                    upsert.executeBatch();
+                    delete.executeBatch();
+                    con.commit();
+                } catch (SQLException e) {
+                    con.rollback();
+                    throw e;
+                }
+            } catch (SQLException e) {
+                logger.warning("Could not write " + ids.size() + " 2FA users, will retry: " + e.getMessage());
+                for (int i = 0; i < ids.size(); i++) dirty.putIfAbsent(ids.get(i), rows.get(i));
+                if (!writer.isShutdown()) {
+                    try { writer.schedule(this::scheduleFlush, 5, TimeUnit.SECONDS); } catch (RejectedExecutionException ignored) { }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package com.forkthus.twofadialog.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only user store. Every mutation is appended to users.journal as one small
+ * checksummed record and applied to an in-memory index; startup replays the log.
+ * A torn or corrupt tail (crash mid-write) is truncated, so only the record being
+ * written at the time of the crash can be lost.
+ */
+public final class JournalUserStore implements UserStore {
+    private static final int MAGIC = 0x32464A4C; // "2FJL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MIN_BODY = 17;      // op + uuid
+    private static final int MAX_BODY = 64 * 1024;
+
+    private static final byte OP_SECRET = 1;
+    private static final byte OP_ENROLLED = 2;
+    private static final byte OP_LAST_IP = 3;
+    private static final byte OP_LAST_LOGIN = 4;
+    private static final byte OP_FAILED = 5;
+    private static final byte OP_BAN = 6;
+    private static final byte OP_REMOVE = 7;
+    private static final byte OP_FULL = 8; // whole user, written by compaction
+
+    private static final class Entry {
+        String secret;
+        boolean enrolled;
+        String lastIp;
+        long lastLogin;
+        int failedAttempts;
+        long banExpiry;
+
+        static Entry of(UserRecord r) {
+            Entry e = new Entry();
+            e.secret = r.secret(); e.enrolled = r.enrolled(); e.lastIp = r.lastIp();
+            e.lastLogin = r.lastLogin(); e.failedAttempts = r.failedAttempts(); e.banExpiry = r.banExpiry();
+            return e;
+        }
+
+        UserRecord toRecord() { return new UserRecord(secret, enrolled, lastIp, lastLogin, failedAttempts, banExpiry); }
+
+        Entry copy() {
+            Entry e = new Entry();
+            e.secret = secret; e.enrolled = enrolled; e.lastIp = lastIp;
+            e.lastLogin = lastLogin; e.failedAttempts = failedAttempts; e.banExpiry = banExpiry;
+            return e;
+        }
+    }
+
+    private final Path path;
+    private final boolean fsync;
+    private final long compactThreshold;
+    private final Logger logger;
+    private final Object lock = new Object(); // guards everything below
+    private final Map<UUID, Entry> index = new HashMap<>();
+    private FileChannel channel;
+    private long records;                  // records in the current journal file
+    private List<ByteBuffer> pending;      // appends made while a compaction is running
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "TwoFADialog-Journal-Compact");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public JournalUserStore(File dataFolder, boolean fsync, long compactThreshold, Logger logger) throws IOException {
+        this.path = new File(dataFolder, "users.journal").toPath();
+        this.fsync = fsync;
+        this.compactThreshold = Math.max(1, compactThreshold);
+        this.logger = logger;
+        Files.createDirectories(path.getParent());
+        long end = replay();
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (end == 0) {
+            writeHeader(channel);
+            end = HEADER_SIZE;
+        } else if (channel.size() > end) {
+            logger.warning("users.journal: dropped " + (channel.size() - end) + " bytes of incomplete records after the last valid entry");
+            channel.truncate(end);
+        }
+        channel.position(end);
+        logger.info("Loaded " + index.size() + " users from users.journal (" + records + " records)");
+    }
+
+    /* ------------ UserStore ------------ */
+
+    @Override public boolean hasSecret(UUID id) { synchronized (lock) { Entry e = index.get(id); return e != null && e.secret != null; } }
+    @Override public String getSecret(UUID id) { synchronized (lock) { Entry e = index.get(id); return e == null ? null : e.secret; } }
+    @Override public void setSecret(UUID id, String base32) { mutate(OP_SECRET, id, base32); }
+
+    @Override public boolean isEnrolled(UUID id) { synchronized (lock) { Entry e = index.get(id); return e != null && e.enrolled; } }
+    @Override public void setEnrolled(UUID id, boolean v) { mutate(OP_ENROLLED, id, v); }
+
+    @Override public String getLastIP(UUID id) { synchronized (lock) { Entry e = index.get(id); return e == null ? null : e.lastIp; } }
+    @Override public void setLastIP(UUID id, String ip) { mutate(OP_LAST_IP, id, ip); }
+
+    @Override public long getLastLoginTime(UUID id) { synchronized (lock) { Entry e = index.get(id); return e == null ? 0 : e.lastLogin; } }
+    @Override public void setLastLoginTime(UUID id, long timestamp) { mutate(OP_LAST_LOGIN, id, timestamp); }
+
+    @Override public int getFailedAttempts(UUID id) { synchronized (lock) { Entry e = index.get(id); return e == null ? 0 : e.failedAttempts; } }
+    @Override public void setFailedAttempts(UUID id, int attempts) { mutate(OP_FAILED, id, attempts); }
+
+    @Override public long getBanExpiry(UUID id) { synchronized (lock) { Entry e = index.get(id); return e == null ? 0 : e.banExpiry; } }
+    @Override public void setBanExpiry(UUID id, long timestamp) { mutate(OP_BAN, id, timestamp); }
+
+    @Override public void removeUser(UUID id) { mutate(OP_REMOVE, id, null); }
+
+    @Override public UserRecord load(UUID id) {
+        synchronized (lock) { Entry e = index.get(id); return e == null ? UserRecord.EMPTY : e.toRecord(); }
+    }
+
+    // One OP_FULL (or OP_REMOVE) record per update, whatever the number of changed fields
+    @Override public UserRecord update(UUID id, UnaryOperator<UserRecord> fn) {
+        synchronized (lock) {
+            Entry e = index.get(id);
+            UserRecord after = fn.apply(e == null ? UserRecord.EMPTY : e.toRecord());
+            if (after == null) {
+                if (e != null) mutate(OP_REMOVE, id, null);
+            } else {
+                mutate(OP_FULL, id, Entry.of(after));
+            }
+            return after;
+        }
+    }
+
+    @Override public Map<UUID, UserRecord> loadAll(Collection<UUID> ids) {
+        Map<UUID, UserRecord> out = new HashMap<>(ids.size() * 2);
+        synchronized (lock) {
+            for (UUID id : ids) {
+                Entry e = index.get(id);
+                out.put(id, e == null ? UserRecord.EMPTY : e.toRecord());
+            }
+        }
+        return out;
+    }
+
+    @Override public Collection<UUID> ids() {
+        synchronized (lock) { return new ArrayList<>(index.keySet()); }
+    }
+
+    // The whole batch is appended under one lock with a single fsync
+    @Override public void saveAll(Map<UUID, UserRecord> records) {
+        List<UUID> ids = new ArrayList<>(records.size());
+        List<Entry> entries = new ArrayList<>(records.size());
+        List<ByteBuffer> recs = new ArrayList<>(records.size());
+        records.forEach((id, r) -> {
+            Entry e = Entry.of(r);
+            ids.add(id);
+            entries.add(e);
+            recs.add(encode(OP_FULL, id, e));
+        });
+        synchronized (lock) {
+            for (int i = 0; i < ids.size(); i++) {
+                apply(OP_FULL, ids.get(i), entries.get(i));
+                append(recs.get(i), false);
+            }
+            force();
+            maybeCompact();
+        }
+    }
+
+    // Encoded up front like saveAll; users that already have a secret are skipped under the lock
+    @Override public int saveAllIfAbsent(Map<UUID, UserRecord> records) {
+        List<UUID> ids = new ArrayList<>(records.size());
+        List<Entry> entries = new ArrayList<>(records.size());
+        List<ByteBuffer> recs = new ArrayList<>(records.size());
+        records.forEach((id, r) -> {
+            Entry e = Entry.of(r);
+            ids.add(id);
+            entries.add(e);
+            recs.add(encode(OP_FULL, id, e));
+        });
+        int written = 0;
+        synchronized (lock) {
+            for (int i = 0; i < ids.size(); i++) {
+                Entry before = index.get(ids.get(i));
+                if (before != null && before.secret != null) continue;
+                apply(OP_FULL, ids.get(i), entries.get(i));
+                append(recs.get(i), false);
+                written++;
+            }
+            if (written > 0) {
+                force();
+                maybeCompact();
+            }
+        }
+        return written;
+    }
+
+    @Override public void removeAll(Collection<UUID> ids) {
+        synchronized (lock) {
+            for (UUID id : ids) {
+                if (!index.containsKey(id)) continue;
+                apply(OP_REMOVE, id, null);
+                append(encode(OP_REMOVE, id, null), false);
+            }
+            force();
+            maybeCompact();
+        }
+    }
+
+    @Override public List<UUID> removeAllIf(Collection<UUID> ids, BiPredicate<UUID, UserRecord> test) {
+        List<UUID> removed = new ArrayList<>();
+        synchronized (lock) {
+            for (UUID id : ids) {
+                Entry e = index.get(id);
+                if (e == null || !test.test(id, e.toRecord())) continue;
+                apply(OP_REMOVE, id, null);
+                append(encode(OP_REMOVE, id, null), false);
+                removed.add(id);
+            }
+            if (!removed.isEmpty()) {
+                force();
+                maybeCompact();
+            }
+        }
+        return removed;
+    }
+
+    @Override public long storageBytes() { return path.toFile().length(); }
+
+    @Override public void save() {
+        synchronized (lock) {
+            try { channel.force(false); } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+
+    @Override public void close() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            try {
+                channel.force(true);
+                channel.close();
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+
+    /* ------------ Journal ------------ */
+
+    private void mutate(byte op, UUID id, Object value) {
+        ByteBuffer rec = encode(op, id, value);
+        synchronized (lock) {
+            apply(op, id, value);
+            append(rec, fsync);
+            maybeCompact();
+        }
+    }
+
+    private void apply(byte op, UUID id, Object value) {
+        if (op == OP_REMOVE) { index.remove(id); return; }
+        if (op == OP_FULL) { index.put(id, (Entry) value); return; }
+        Entry e = index.computeIfAbsent(id, k -> new Entry());
+        switch (op) {
+            case OP_SECRET -> e.secret = (String) value;
+            case OP_ENROLLED -> e.enrolled = (Boolean) value;
+            case OP_LAST_IP -> e.lastIp = (String) value;
+            case OP_LAST_LOGIN -> e.lastLogin = (Long) value;
+            case OP_FAILED -> e.failedAttempts = (Integer) value;
+            case OP_BAN -> e.banExpiry = (Long) value;
+            default -> throw new IllegalArgumentException("Unknown journal op " + op);
+        }
+    }
+
+    private void append(ByteBuffer rec, boolean force) {
+        try {
+            if (pending != null) pending.add(rec.duplicate());
+            while (rec.hasRemaining()) channel.write(rec);
+            if (force) channel.force(false);
+            records++;
+        } catch (IOException e) { e.printStackTrace(); }
+    }
+
+    // Caller holds lock. Ends a batch of unforced appends.
+    private void force() {
+        if (!fsync) return;
+        try { channel.force(false); } catch (IOException e) { e.printStackTrace(); }
+    }
+
+    // Record layout: [int bodyLength][byte op][long uuidMsb][long uuidLsb][payload][int crc32(body)]
+    private static ByteBuffer encode(byte op, UUID id, Object value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(op);
+            out.writeLong(id.getMostSignificantBits());
+            out.writeLong(id.getLeastSignificantBits());
+            switch (op) {
+                case OP_SECRET, OP_LAST_IP -> writeString(out, (String) value);
+                case OP_ENROLLED -> out.writeBoolean((Boolean) value);
+                case OP_LAST_LOGIN, OP_BAN -> out.writeLong((Long) value);
+                case OP_FAILED -> out.writeInt((Integer) value);
+                case OP_FULL -> {
+                    Entry e = (Entry) value;
+                    writeString(out, e.secret);
+                    out.writeBoolean(e.enrolled);
+                    writeString(out, e.lastIp);
+                    out.writeLong(e.lastLogin);
+                    out.writeInt(e.failedAttempts);
+                    out.writeLong(e.banExpiry);
+                }
+                default -> { }
+            }
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+        byte[] body = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer buf = ByteBuffer.allocate(4 + body.length + 4);
+        buf.putInt(body.length).put(body).putInt((int) crc.getValue()).flip();
+        return buf;
+    }
+
+    private void decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte op = in.readByte();
+        UUID id = new UUID(in.readLong(), in.readLong());
+        Object value = switch (op) {
+            case OP_SECRET, OP_LAST_IP -> readString(in);
+            case OP_ENROLLED -> in.readBoolean();
+            case OP_LAST_LOGIN, OP_BAN -> in.readLong();
+            case OP_FAILED -> in.readInt();
+            case OP_FULL -> {
+                Entry e = new Entry();
+                e.secret = readString(in);
+                e.enrolled = in.readBoolean();
+                e.lastIp = readString(in);
+                e.lastLogin = in.readLong();
+                e.failedAttempts = in.readInt();
+                e.banExpiry = in.readLong();
+                yield e;
+            }
+            case OP_REMOVE -> null;
+            default -> throw new IOException("Unknown journal op " + op);
+        };
+        apply(op, id, value);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeHeader(FileChannel ch) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) ch.write(header);
+    }
+
+    // Rebuilds the index from the log; returns the offset just past the last valid record (0 = no journal yet).
+    private long replay() throws IOException {
+        if (!Files.exists(path) || Files.size(path) < HEADER_SIZE) return 0;
+        long end = HEADER_SIZE;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC) throw new IOException(path + " is not a 2FA journal");
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported journal version " + version);
+            CRC32 crc = new CRC32();
+            while (true) {
+                int len;
+                byte[] body;
+                int sum;
+                try {
+                    len = in.readInt();
+                    if (len < MIN_BODY || len > MAX_BODY) break;
+                    body = new byte[len];
+                    in.readFully(body);
+                    sum = in.readInt();
+                } catch (EOFException torn) {
+                    break;
+                }
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != sum) break;
+                decode(body);
+                records++;
+                end += 4L + len + 4L;
+            }
+        }
+        return end;
+    }
+
+    /* ------------ Compaction ------------ */
+
+    // Caller holds lock. Every user collapses to one OP_FULL record, so anything beyond index.size() is dead.
+    // Waiting until dead records also outnumber live ones keeps the rewrite cost amortized O(1) per append.
+    private void maybeCompact() {
+        long dead = records - index.size();
+        if (pending != null || dead < Math.max(compactThreshold, index.size()) || compactor.isShutdown()) return;
+        pending = new ArrayList<>();
+        Map<UUID, Entry> snapshot = new HashMap<>(index.size() * 2);
+        index.forEach((id, e) -> snapshot.put(id, e.copy()));
+        compactor.execute(() -> compact(snapshot));
+    }
+
+    private void compact(Map<UUID, Entry> snapshot) {
+        Path tmp = path.resolveSibling(path.getFileName() + ".compact");
+        long start = System.nanoTime();
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeHeader(out);
+            BufferedOutputStream stream = new BufferedOutputStream(Channels.newOutputStream(out), 1 << 16);
+            for (var entry : snapshot.entrySet()) {
+                ByteBuffer rec = encode(OP_FULL, entry.getKey(), entry.getValue());
+                stream.write(rec.array(), 0, rec.limit());
+            }
+            stream.flush();
+
+            synchronized (lock) {
+                // Catch up with everything appended while the snapshot was being written
+                for (ByteBuffer rec : pending) {
+                    while (rec.hasRemaining()) out.write(rec);
+                }
+                out.force(true);
+                out.close();
+                channel.close();
+                try {
+                    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+                long before = records;
+                records = snapshot.size() + pending.size();
+                channel = FileChannel.open(path, StandardOpenOption.WRITE);
+                channel.position(channel.size());
+                logger.info("Compacted users.journal from " + before + " to " + records + " records in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            }
+        } catch (IOException e) {
+            logger.severe("users.journal compaction failed: " + e.getMessage());
+            synchronized (lock) {
+                try {
+                    if (!channel.isOpen()) {
+                        channel = FileChannel.open(path, StandardOpenOption.WRITE);
+                        channel.position(channel.size());
+                    }
+                } catch (IOException reopen) { reopen.printStackTrace(); }
+            }
+        } finally {
+            synchronized (lock) { pending = null; }
+        }
+    }
+}
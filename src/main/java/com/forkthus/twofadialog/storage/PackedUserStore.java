@@ -0,0 +1,443 @@
+package com.forkthus.twofadialog.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+/**
+ * Users in a {@link PackedUserTable} memory-mapped from users.packed. The table lives off-heap in the
+ * page cache, startup maps the file instead of parsing it, and a write touches one 80-byte slot.
+ * Dirty pages are forced to disk every flush interval and by save(). Once half the slots are used, a background
+ * thread rehashes the table into a file twice the size a range of slots at a time, so lookups never wait for the whole
+ * copy. A slot torn by a power loss fails its checksum;
+ * unless an older intact copy survives, that user is quarantined and every read or write for them throws (so their
+ * login is refused, never treated as unenrolled) until /2fa remove resets them.
+ */
+public final class PackedUserStore implements UserStore {
+    private static final int MAGIC = 0x32465054; // "2FPT"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;   // magic, version, capacity; the rest is reserved
+    private static final int GROW_CHUNK = 4096;  // slots copied per lock hold while growing
+
+    private final Path path;
+    private final Logger logger;
+    private final Object lock = new Object(); // guards everything below
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private PackedUserTable table;
+    private boolean dirty;                      // writes since the last force
+    private boolean growing;
+    private Set<UUID> growTouched;              // users written while a grow copies, recopied before the swap
+    private Exception growError;                // why the last grow failed
+    private final ScheduledExecutorService background; // forcing and growing
+
+    public PackedUserStore(File dataFolder, Logger logger) throws IOException { this(dataFolder, 0, logger); }
+
+    public PackedUserStore(File dataFolder, long forceIntervalMs, Logger logger) throws IOException {
+        this.path = new File(dataFolder, "users.packed").toPath();
+        this.logger = logger;
+        Files.createDirectories(path.getParent());
+        if (!Files.exists(path)) {
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            create(tmp, PackedUserTable.capacityFor(0)).close();
+            move(tmp, path);
+        }
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) { }
+        if (header.getInt(0) != MAGIC) throw new IOException(path + " is not a 2FA user table");
+        if (header.getInt(4) != VERSION) throw new IOException("Unsupported user table version " + header.getInt(4));
+        int capacity = header.getInt(8);
+        long size = HEADER_SIZE + (long) capacity * PackedUserTable.SLOT_BYTES;
+        if (capacity <= 0 || capacity > PackedUserTable.MAX_CAPACITY || channel.size() < size) {
+            throw new IOException(path + " is truncated or has a bad header");
+        }
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        table = new PackedUserTable(map, HEADER_SIZE, capacity);
+        if (table.corrupt() > 0) logger.warning("users.packed: " + table.corrupt() + " records failed their checksum");
+        if (!table.quarantined().isEmpty()) {
+            logger.warning("users.packed: 2FA data of " + table.quarantined().size() + " players is damaged and they cannot log in"
+                    + " until reset with /2fa remove: " + table.quarantined());
+        }
+        logger.info("Loaded " + table.size() + " users from users.packed (" + capacity + " slots)");
+        background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "TwoFADialog-Packed");
+            t.setDaemon(true);
+            return t;
+        });
+        if (forceIntervalMs > 0) { // otherwise only save() and close() force
+            background.scheduleWithFixedDelay(this::forceIfDirty, forceIntervalMs, forceIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /* ------------ UserStore ------------ */
+
+    @Override public boolean hasSecret(UUID id) { return load(id).hasSecret(); }
+    @Override public String getSecret(UUID id) { return load(id).secret(); }
+    @Override public void setSecret(UUID id, String base32) { update(id, r -> r.withSecret(base32)); }
+
+    @Override public boolean isEnrolled(UUID id) { return load(id).enrolled(); }
+    @Override public void setEnrolled(UUID id, boolean v) { update(id, r -> r.withEnrolled(v)); }
+
+    @Override public String getLastIP(UUID id) { return load(id).lastIp(); }
+    @Override public void setLastIP(UUID id, String ip) { update(id, r -> r.withLastIp(ip)); }
+
+    @Override public long getLastLoginTime(UUID id) { return load(id).lastLogin(); }
+    @Override public void setLastLoginTime(UUID id, long timestamp) { update(id, r -> r.withLastLogin(timestamp)); }
+
+    @Override public int getFailedAttempts(UUID id) { return load(id).failedAttempts(); }
+    @Override public void setFailedAttempts(UUID id, int attempts) { update(id, r -> r.withFailedAttempts(attempts)); }
+
+    @Override public long getBanExpiry(UUID id) { return load(id).banExpiry(); }
+    @Override public void setBanExpiry(UUID id, long timestamp) { update(id, r -> r.withBanExpiry(timestamp)); }
+
+    // Also the way out of quarantine
+    @Override public void removeUser(UUID id) {
+        synchronized (lock) {
+            table.remove(id);
+            if (table.release(id)) logger.info("users.packed: released quarantined record of " + id);
+            touched(id);
+            dirty = true;
+        }
+    }
+
+    @Override public UserRecord load(UUID id) {
+        synchronized (lock) {
+            checkNotQuarantined(id);
+            UserRecord r = table.get(id);
+            return r == null ? UserRecord.EMPTY : r;
+        }
+    }
+
+    // Throws IllegalArgumentException for a secret or IP that has no packed form (see PackedUserTable.packable).
+    // Only waits for a grow when writes have outrun it all the way to the load limit.
+    @Override public UserRecord update(UUID id, UnaryOperator<UserRecord> fn) {
+        synchronized (lock) {
+            awaitRoom();
+            checkNotQuarantined(id);
+            UserRecord before = table.get(id);
+            UserRecord after = fn.apply(before == null ? UserRecord.EMPTY : before);
+            if (after == null || after.equals(UserRecord.EMPTY)) {
+                if (table.remove(id)) {
+                    touched(id);
+                    dirty = true;
+                }
+            } else if (!after.equals(before)) {
+                table.put(id, after);
+                touched(id);
+                dirty = true;
+                if (table.used() > table.capacity() / 2 && table.capacity() < PackedUserTable.MAX_CAPACITY) startGrow();
+            }
+            return after;
+        }
+    }
+
+    @Override public Map<UUID, UserRecord> loadAll(Collection<UUID> ids) {
+        Map<UUID, UserRecord> out = new HashMap<>(ids.size() * 2);
+        synchronized (lock) {
+            for (UUID id : ids) {
+                checkNotQuarantined(id);
+                UserRecord r = table.get(id);
+                out.put(id, r == null ? UserRecord.EMPTY : r);
+            }
+        }
+        return out;
+    }
+
+    @Override public Collection<UUID> ids() {
+        synchronized (lock) {
+            List<UUID> out = new ArrayList<>(table.size());
+            table.forEachId(out::add);
+            return out;
+        }
+    }
+
+    @Override public boolean accepts(UserRecord record) { return PackedUserTable.packable(record); }
+
+    // One lock for the whole batch. Quarantined users and records without a packed form are left out and logged
+    // rather than failing the rest of the batch; a migration's verify pass then reports them.
+    @Override public void saveAll(Map<UUID, UserRecord> records) {
+        List<UUID> rejected = new ArrayList<>();
+        synchronized (lock) {
+            records.forEach((id, r) -> {
+                if (table.isQuarantined(id) || !PackedUserTable.packable(r)) rejected.add(id);
+                else update(id, before -> r);
+            });
+        }
+        if (!rejected.isEmpty()) {
+            logger.warning("users.packed: left out " + rejected.size() + " damaged users or records without a packed form: " + rejected);
+        }
+    }
+
+    // Quarantined users count as having a secret, and records without a packed form are not written
+    // (the importer already counts those as invalid, see accepts)
+    @Override public int saveAllIfAbsent(Map<UUID, UserRecord> records) {
+        int written = 0;
+        synchronized (lock) {
+            for (Map.Entry<UUID, UserRecord> e : records.entrySet()) {
+                if (table.isQuarantined(e.getKey()) || !PackedUserTable.packable(e.getValue())) continue;
+                boolean[] wrote = new boolean[1];
+                update(e.getKey(), before -> (wrote[0] = !before.hasSecret()) ? e.getValue() : before);
+                if (wrote[0]) written++;
+            }
+        }
+        return written;
+    }
+
+    @Override public void removeAll(Collection<UUID> ids) {
+        synchronized (lock) {
+            for (UUID id : ids) removeUser(id);
+        }
+    }
+
+    // Quarantined users are kept: their record cannot be read to test it
+    @Override public List<UUID> removeAllIf(Collection<UUID> ids, BiPredicate<UUID, UserRecord> test) {
+        List<UUID> removed = new ArrayList<>();
+        synchronized (lock) {
+            for (UUID id : ids) {
+                UserRecord r = table.isQuarantined(id) ? null : table.get(id);
+                if (r == null || !test.test(id, r)) continue;
+                table.remove(id);
+                touched(id);
+                removed.add(id);
+            }
+            if (!removed.isEmpty()) dirty = true;
+        }
+        return removed;
+    }
+
+    @Override public long storageBytes() { return path.toFile().length(); }
+
+    @Override public void save() {
+        synchronized (lock) {
+            map.force();
+            dirty = false;
+        }
+    }
+
+    @Override public void close() {
+        background.shutdown(); // lets a running grow finish
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            try {
+                map.force();
+                channel.close();
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+
+    // Caller holds lock. Throwing keeps a damaged record from reading as "not enrolled".
+    private void checkNotQuarantined(UUID id) {
+        if (table.isQuarantined(id)) {
+            throw new IllegalStateException("2FA data of " + id + " in users.packed is damaged; reset it with /2fa remove");
+        }
+    }
+
+    private void forceIfDirty() {
+        synchronized (lock) {
+            if (!dirty) return;
+            map.force();
+            dirty = false;
+        }
+    }
+
+    /* ------------ Growing ------------ */
+
+    // Caller holds lock
+    private void touched(UUID id) {
+        if (growTouched != null) growTouched.add(id);
+    }
+
+    // Caller holds lock
+    private void startGrow() {
+        if (growing) return;
+        growing = true;
+        try {
+            background.execute(this::grow);
+        } catch (RejectedExecutionException closed) {
+            growing = false;
+            growError = new IllegalStateException("users.packed is closed");
+        }
+    }
+
+    // Caller holds lock. Waiting releases it, so the grow's copy (and other readers) carry on meanwhile.
+    private void awaitRoom() {
+        boolean started = false;
+        while (table.full()) {
+            if (!growing) {
+                if (started && growError != null) throw new IllegalStateException("users.packed is full and could not grow", growError);
+                startGrow();
+                started = true;
+            }
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for users.packed to grow");
+            }
+        }
+    }
+
+    // Background thread. Copies the table into a new file twice its live count a chunk of slots per lock hold,
+    // recopies the users written meanwhile, then releases the old mapping and swaps the new file in atomically.
+    private void grow() {
+        PackedUserTable source;
+        int capacity;
+        synchronized (lock) {
+            source = table;
+            capacity = PackedUserTable.capacityFor(table.size() * 2 + 1);
+            growTouched = new HashSet<>();
+        }
+        Path tmp = path.resolveSibling(path.getFileName() + ".grow");
+        long start = System.nanoTime();
+        FileChannel next = null;
+        try {
+            if (capacity > PackedUserTable.MAX_CAPACITY) throw new IllegalStateException("users.packed is full");
+            next = create(tmp, capacity);
+            MappedByteBuffer nextMap = next.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * PackedUserTable.SLOT_BYTES);
+            PackedUserTable nextTable = new PackedUserTable(nextMap, HEADER_SIZE, capacity);
+            for (int from = 0; from < source.capacity(); from += GROW_CHUNK) {
+                synchronized (lock) {
+                    source.copyTo(nextTable, from, Math.min(source.capacity(), from + GROW_CHUNK));
+                }
+            }
+            // Users moved, removed or released since their range was copied, a chunk at a time until few are left
+            for (int round = 0; round < 8; round++) {
+                List<UUID> batch;
+                synchronized (lock) {
+                    if (growTouched.size() <= GROW_CHUNK) break;
+                    batch = new ArrayList<>(growTouched);
+                    growTouched.clear();
+                }
+                for (int from = 0; from < batch.size(); from += GROW_CHUNK) {
+                    synchronized (lock) {
+                        recopy(nextTable, batch.subList(from, Math.min(batch.size(), from + GROW_CHUNK)));
+                    }
+                }
+            }
+            nextMap.force(); // the bulk of it, outside the lock
+            synchronized (lock) {
+                recopy(nextTable, growTouched);
+                growTouched = null;
+                nextMap.force();
+                // Windows refuses to replace a file that is still mapped
+                channel.close();
+                unmap(map);
+                try {
+                    move(tmp, path);
+                } catch (IOException e) {
+                    try {
+                        reopen();
+                    } catch (IOException again) { // never leave the unmapped buffer in use
+                        channel = next;
+                        map = nextMap;
+                        table = nextTable;
+                        again.addSuppressed(e);
+                        throw again;
+                    }
+                    throw e;
+                }
+                channel = next;
+                map = nextMap;
+                table = nextTable;
+                growError = null;
+            }
+            logger.info("Grew users.packed from " + source.capacity() + " to " + capacity + " slots in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException | RuntimeException e) {
+            logger.warning("Could not grow users.packed: " + e);
+            synchronized (lock) {
+                growTouched = null;
+                growError = e;
+            }
+            if (next != null && next != channel) {
+                try {
+                    next.close();
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) { }
+            }
+        } finally {
+            synchronized (lock) {
+                growing = false;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // Caller holds lock
+    private void recopy(PackedUserTable nextTable, Collection<UUID> ids) {
+        for (UUID id : ids) {
+            while (nextTable.remove(id)) { } // a move can leave a copy from each range
+            nextTable.release(id);
+            UserRecord r = table.get(id);
+            if (r != null) nextTable.put(id, r);
+        }
+    }
+
+    // Caller holds lock. Maps users.packed again after a failed swap; unmapping keeps its writes, so nothing is lost.
+    private void reopen() throws IOException {
+        int capacity = table.capacity();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * PackedUserTable.SLOT_BYTES);
+        table = new PackedUserTable(map, HEADER_SIZE, capacity);
+    }
+
+    // Releases the mapping now instead of at some later GC. Best effort: without it the move may fail, and reopen() recovers.
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException ignored) { }
+    }
+
+    /* ------------ File ------------ */
+
+    // A header followed by zeroed (empty) slots; sparse where the filesystem allows
+    private static FileChannel create(Path file, int capacity) throws IOException {
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putInt(capacity);
+        header.clear();
+        while (header.hasRemaining()) ch.write(header);
+        long size = HEADER_SIZE + (long) capacity * PackedUserTable.SLOT_BYTES;
+        ch.write(ByteBuffer.allocate(1), size - 1);
+        return ch;
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package com.forkthus.twofadialog.storage;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Open-addressing hash table of fixed-size user slots in one ByteBuffer (heap, direct or memory-mapped).
+ * A slot holds the UUID as two longs, the raw 20-byte secret, the IP as 16 bytes and primitive
+ * timestamps and counters in 80 bytes, and the table itself is the index: no per-user objects at all.
+ * Updates are written out of place (new slot, then the old one is tombstoned), so a crash mid-write leaves
+ * the old record intact. A slot that fails its checksum with no intact copy is quarantined, never dropped:
+ * the owning store refuses that user until an admin removes them.
+ * Not thread-safe; the owning store serializes access.
+ */
+public final class PackedUserTable {
+    // Slot layout
+    public static final int SLOT_BYTES = 80;
+    private static final int MSB = 0, LSB = 8, STATE = 16, FLAGS = 17, SECRET_LEN = 18, IP_LEN = 19;
+    private static final int SECRET = 20, IP = 40, LAST_LOGIN = 56, BAN_EXPIRY = 64, FAILED = 72, CRC = 76;
+    public static final int SECRET_BYTES = 20;
+    private static final int IP_BYTES = 16;
+
+    private static final byte EMPTY = 0, LIVE = 1, DELETED = 2, QUARANTINED = 3;
+    private static final int FLAG_ENROLLED = 1;
+    private static final float MAX_LOAD = 0.75f;
+    private static final char[] BASE32 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".toCharArray();
+    public static final int MAX_CAPACITY = 1 << 24; // largest power of two whose slots fit one buffer
+
+    private final ByteBuffer buf;
+    private final int base;      // offset of slot 0 in buf
+    private final int capacity;  // power of two
+    private int live, deleted, quarantinedSlots;
+    private int corrupt;         // slots that failed their checksum when the table was opened
+    private final Set<UUID> quarantine = new HashSet<>(); // users whose only record failed its checksum
+
+    // Wraps an existing buffer (e.g. a mapped file) and counts what is already in it
+    public PackedUserTable(ByteBuffer buf, int base, int capacity) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        if ((long) base + (long) capacity * SLOT_BYTES > buf.capacity()) throw new IllegalArgumentException("Buffer too small for " + capacity + " slots");
+        this.buf = buf;
+        this.base = base;
+        this.capacity = capacity;
+        byte[] slot = new byte[SLOT_BYTES];
+        for (int i = 0; i < capacity; i++) {
+            int off = offset(i);
+            byte state = buf.get(off + STATE);
+            if (state == LIVE) {
+                buf.get(off, slot);
+                if (crc(slot) == buf.getInt(off + CRC)) {
+                    live++;
+                } else {
+                    buf.put(off + STATE, QUARANTINED); // torn by a crash mid-write
+                    corrupt++;
+                    quarantinedSlots++;
+                }
+            } else if (state == DELETED) {
+                deleted++;
+            } else if (state == QUARANTINED) {
+                quarantinedSlots++;
+            }
+        }
+        // A crash between writing an update and tombstoning the old slot leaves two intact copies (keep the one
+        // lookups find), or one torn copy beside an intact one (drop the torn one)
+        for (int i = 0; i < capacity; i++) {
+            int off = offset(i);
+            byte state = buf.get(off + STATE);
+            if (state != LIVE && state != QUARANTINED) continue;
+            UUID id = new UUID(buf.getLong(off + MSB), buf.getLong(off + LSB));
+            int found = find(id);
+            if (state == LIVE && found != i) {
+                buf.put(off + STATE, DELETED);
+                live--;
+                deleted++;
+            } else if (state == QUARANTINED && found >= 0) {
+                buf.put(off + STATE, DELETED);
+                quarantinedSlots--;
+                deleted++;
+            } else if (state == QUARANTINED) {
+                quarantine.add(id);
+            }
+        }
+    }
+
+    public static PackedUserTable allocate(int capacity, boolean direct) {
+        int cap = Math.max(16, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+        if (cap > MAX_CAPACITY) throw new IllegalArgumentException("At most " + MAX_CAPACITY + " slots");
+        ByteBuffer b = direct ? ByteBuffer.allocateDirect(cap * SLOT_BYTES) : ByteBuffer.allocate(cap * SLOT_BYTES);
+        return new PackedUserTable(b, 0, cap);
+    }
+
+    // Smallest power-of-two capacity that holds n users below the load limit
+    public static int capacityFor(int n) {
+        int cap = 16;
+        while (cap * MAX_LOAD <= n) cap <<= 1;
+        return cap;
+    }
+
+    public int size() { return live; }
+    public int capacity() { return capacity; }
+    public int used() { return live + deleted + quarantinedSlots; }
+    public int corrupt() { return corrupt; }
+
+    // True when one more write would push used slots past the load limit (updates take a new slot too)
+    public boolean full() {
+        return live + deleted + quarantinedSlots + 1 > capacity * MAX_LOAD;
+    }
+
+    public boolean isQuarantined(UUID id) {
+        return quarantine.contains(id);
+    }
+
+    public Set<UUID> quarantined() {
+        return Collections.unmodifiableSet(quarantine);
+    }
+
+    // Tombstones the user's quarantined slots, e.g. when an admin resets them; false if there were none
+    public boolean release(UUID id) {
+        if (!quarantine.remove(id)) return false;
+        long msb = id.getMostSignificantBits(), lsb = id.getLeastSignificantBits();
+        for (int i = 0; i < capacity; i++) {
+            int off = offset(i);
+            if (buf.get(off + STATE) == QUARANTINED && buf.getLong(off + MSB) == msb && buf.getLong(off + LSB) == lsb) {
+                buf.put(off + STATE, DELETED);
+                quarantinedSlots--;
+                deleted++;
+            }
+        }
+        return true;
+    }
+
+    // Null when absent
+    public UserRecord get(UUID id) {
+        int slot = find(id);
+        return slot < 0 ? null : read(offset(slot));
+    }
+
+    // Throws IllegalStateException when full() (grow first) and IllegalArgumentException for a record that does not pack.
+    // The record goes to a free slot first; only then is the old one tombstoned.
+    public void put(UUID id, UserRecord r) {
+        byte[] secret = packSecret(r.secret());
+        byte[] ip = packIp(r.lastIp());
+        if (full()) throw new IllegalStateException("Table full");
+        int old = find(id);
+        int slot = insertionSlot(id);
+        if (buf.get(offset(slot) + STATE) == DELETED) deleted--;
+        write(offset(slot), id, r, secret, ip);
+        if (old >= 0) {
+            buf.put(offset(old) + STATE, DELETED);
+            deleted++;
+        } else {
+            live++;
+        }
+    }
+
+    public boolean remove(UUID id) {
+        int slot = find(id);
+        if (slot < 0) return false;
+        buf.put(offset(slot) + STATE, DELETED);
+        live--;
+        deleted++;
+        return true;
+    }
+
+    public void forEach(BiConsumer<UUID, UserRecord> action) {
+        for (int i = 0; i < capacity; i++) {
+            int off = offset(i);
+            if (buf.get(off + STATE) == LIVE) action.accept(new UUID(buf.getLong(off + MSB), buf.getLong(off + LSB)), read(off));
+        }
+    }
+
+    // Live and quarantined users, so bulk jobs see (and stop at) quarantined ones instead of skipping them
+    public void forEachId(Consumer<UUID> action) {
+        for (int i = 0; i < capacity; i++) {
+            int off = offset(i);
+            byte state = buf.get(off + STATE);
+            if (state == LIVE || state == QUARANTINED) action.accept(new UUID(buf.getLong(off + MSB), buf.getLong(off + LSB)));
+        }
+    }
+
+    // Copies every live and quarantined slot into an empty table, dropping tombstones
+    public void copyTo(PackedUserTable target) {
+        copyTo(target, 0, capacity);
+    }
+
+    // Same for slots [from, to), so a large table can be copied a range at a time
+    public void copyTo(PackedUserTable target, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int src = offset(i);
+            byte state = buf.get(src + STATE);
+            if (state != LIVE && state != QUARANTINED) continue;
+            UUID id = new UUID(buf.getLong(src + MSB), buf.getLong(src + LSB));
+            int dst = target.offset(target.insertionSlot(id));
+            if (target.buf.get(dst + STATE) == DELETED) target.deleted--;
+            target.buf.put(dst, buf, src, SLOT_BYTES);
+            if (state == LIVE) {
+                target.live++;
+            } else {
+                target.quarantinedSlots++;
+                target.quarantine.add(id);
+            }
+        }
+    }
+
+    // Whether put() accepts this record: base32 secrets of at most 20 bytes and literal IPs
+    public static boolean packable(UserRecord r) {
+        try {
+            packSecret(r.secret());
+            packIp(r.lastIp());
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /* ------------ Probing ------------ */
+
+    private int offset(int slot) {
+        return base + slot * SLOT_BYTES;
+    }
+
+    private int home(UUID id) {
+        long h = id.getMostSignificantBits() ^ id.getLeastSignificantBits();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL; // murmur3 finalizer
+        h ^= h >>> 33;
+        return (int) h & (capacity - 1);
+    }
+
+    private int find(UUID id) {
+        long msb = id.getMostSignificantBits(), lsb = id.getLeastSignificantBits();
+        int mask = capacity - 1;
+        for (int i = home(id), probes = 0; probes < capacity; i = (i + 1) & mask, probes++) {
+            int off = offset(i);
+            byte state = buf.get(off + STATE);
+            if (state == EMPTY) return -1;
+            if (state == LIVE && buf.getLong(off + MSB) == msb && buf.getLong(off + LSB) == lsb) return i;
+        }
+        return -1;
+    }
+
+    // First empty or deleted slot on id's probe path; never id's current slot, which is live
+    private int insertionSlot(UUID id) {
+        int mask = capacity - 1;
+        for (int i = home(id); ; i = (i + 1) & mask) {
+            byte state = buf.get(offset(i) + STATE);
+            if (state == EMPTY || state == DELETED) return i;
+        }
+    }
+
+    /* ------------ Slots ------------ */
+
+    private UserRecord read(int off) {
+        int secretLen = buf.get(off + SECRET_LEN);
+        String secret = null;
+        if (secretLen > 0) {
+            byte[] raw = new byte[secretLen];
+            buf.get(off + SECRET, raw);
+            secret = base32(raw);
+        }
+        int ipLen = buf.get(off + IP_LEN);
+        String ip = null;
+        if (ipLen > 0) {
+            byte[] raw = new byte[ipLen];
+            buf.get(off + IP, raw);
+            ip = ipString(raw);
+        }
+        boolean enrolled = (buf.get(off + FLAGS) & FLAG_ENROLLED) != 0;
+        return new UserRecord(secret, enrolled, ip, buf.getLong(off + LAST_LOGIN), buf.getInt(off + FAILED), buf.getLong(off + BAN_EXPIRY));
+    }
+
+    // Fields first, then the checksum; the state byte is only flipped to LIVE once the slot is complete
+    private void write(int off, UUID id, UserRecord r, byte[] secret, byte[] ip) {
+        byte[] slot = new byte[SLOT_BYTES];
+        ByteBuffer s = ByteBuffer.wrap(slot);
+        s.putLong(MSB, id.getMostSignificantBits()).putLong(LSB, id.getLeastSignificantBits());
+        s.put(STATE, LIVE);
+        s.put(FLAGS, (byte) (r.enrolled() ? FLAG_ENROLLED : 0));
+        s.put(SECRET_LEN, (byte) (secret == null ? 0 : secret.length));
+        s.put(IP_LEN, (byte) (ip == null ? 0 : ip.length));
+        if (secret != null) s.put(SECRET, secret);
+        if (ip != null) s.put(IP, ip);
+        s.putLong(LAST_LOGIN, r.lastLogin()).putLong(BAN_EXPIRY, r.banExpiry()).putInt(FAILED, r.failedAttempts());
+        s.putInt(CRC, crc(slot));
+        slot[STATE] = buf.get(off + STATE); // still free or deleted while the body lands
+        buf.put(off, slot);
+        buf.put(off + STATE, LIVE);
+    }
+
+    private static int crc(byte[] slot) {
+        byte state = slot[STATE];
+        slot[STATE] = LIVE; // checksum as it will read once live
+        CRC32 crc = new CRC32();
+        crc.update(slot, 0, CRC);
+        slot[STATE] = state;
+        return (int) crc.getValue();
+    }
+
+    private static byte[] packSecret(String secret) {
+        if (secret == null) return null;
+        byte[] raw = unbase32(secret);
+        if (raw == null || raw.length == 0 || raw.length > SECRET_BYTES) {
+            throw new IllegalArgumentException("Secret is not base32 of at most " + SECRET_BYTES + " bytes");
+        }
+        return raw;
+    }
+
+    // RFC 4648 base32, upper case and unpadded like Totp.newBase32Secret()
+    private static String base32(byte[] raw) {
+        char[] out = new char[(raw.length * 8 + 4) / 5];
+        int buffer = 0, bits = 0, o = 0;
+        for (byte b : raw) {
+            buffer = (buffer << 8) | (b & 0xFF);
+            bits += 8;
+            while (bits >= 5) {
+                out[o++] = BASE32[(buffer >>> (bits - 5)) & 31];
+                bits -= 5;
+            }
+        }
+        if (bits > 0) out[o] = BASE32[(buffer << (5 - bits)) & 31];
+        return new String(out);
+    }
+
+    // Null unless s is base32 (either case, padding optional) that base32() reproduces up to case and padding
+    private static byte[] unbase32(String s) {
+        int end = s.length();
+        while (end > 0 && s.charAt(end - 1) == '=') end--;
+        byte[] out = new byte[end * 5 / 8];
+        int buffer = 0, bits = 0, o = 0;
+        for (int i = 0; i < end; i++) {
+            char c = s.charAt(i);
+            int v = c >= 'A' && c <= 'Z' ? c - 'A' : c >= 'a' && c <= 'z' ? c - 'a' : c >= '2' && c <= '7' ? c - '2' + 26 : -1;
+            if (v < 0) return null;
+            buffer = (buffer << 5) | v;
+            bits += 5;
+            if (bits >= 8) {
+                out[o++] = (byte) (buffer >>> (bits - 8));
+                bits -= 8;
+            }
+        }
+        if (bits >= 5 || (buffer & ((1 << bits) - 1)) != 0) return null; // not a length or tail base32() produces
+        return out;
+    }
+
+    // Literal IPv4 or IPv6 only: never a DNS lookup
+    private static byte[] packIp(String ip) {
+        if (ip == null) return null;
+        byte[] v4 = parseIpv4(ip);
+        if (v4 != null) return v4;
+        byte[] raw = IpLiteral.parse(ip);
+        if (raw.length > IP_BYTES || !ipString(raw).equals(ip)) throw new IllegalArgumentException("IP does not round-trip: " + ip);
+        return raw;
+    }
+
+    // Dotted quad without leading zeros, so it round-trips through ipString(); null otherwise
+    private static byte[] parseIpv4(String ip) {
+        byte[] raw = new byte[4];
+        int part = 0, value = 0, digits = 0;
+        for (int i = 0; i <= ip.length(); i++) {
+            char c = i < ip.length() ? ip.charAt(i) : '.';
+            if (c == '.') {
+                if (digits == 0 || part == 4) return null;
+                raw[part++] = (byte) value;
+                value = 0;
+                digits = 0;
+            } else if (c >= '0' && c <= '9' && !(digits == 1 && value == 0)) {
+                value = value * 10 + (c - '0');
+                if (++digits > 3 || value > 255) return null;
+            } else {
+                return null;
+            }
+        }
+        return part == 4 ? raw : null;
+    }
+
+    private static String ipString(byte[] raw) {
+        if (raw.length == 4) return (raw[0] & 0xFF) + "." + (raw[1] & 0xFF) + "." + (raw[2] & 0xFF) + "." + (raw[3] & 0xFF);
+        try {
+            return InetAddress.getByAddress(raw).getHostAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // only thrown for bad lengths
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.forkthus.twofadialog.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * One small file per user under users/&lt;first two hex digits&gt;/&lt;uuid&gt;.dat.
+ * Nothing is read at startup: a record is loaded on first access and evicted once it has gone unused
+ * for a while. Writes update the cache and are written out by a background writer, each replacing just that
+ * user's file, so a join storm of new players never creates files on the caller's thread.
+ */
+public final class ShardedUserStore implements UserStore {
+    private static final int MAGIC = 0x32465355; // "2FSU"
+    private static final int VERSION = 1;
+    private static final int MAX_FILE = 4 * 1024;
+
+    private static final class Cached {
+        volatile UserRecord row; // null = no file
+        volatile long touched = System.currentTimeMillis();
+        boolean evicted; // guarded by this
+        Cached(UserRecord row) { this.row = row; }
+    }
+
+    private final Path root;
+    private final long evictAfterMs;
+    private final Logger logger;
+    private final Map<UUID, Cached> cache = new ConcurrentHashMap<>();
+    private final Map<UUID, Cached> dirty = new ConcurrentHashMap<>(); // cached rows not yet in their file
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "TwoFADialog-Shard-Writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ShardedUserStore(File dataFolder, long evictAfterMs, Logger logger) throws IOException {
+        this.root = new File(dataFolder, "users").toPath();
+        this.evictAfterMs = Math.max(60_000L, evictAfterMs);
+        this.logger = logger;
+        Files.createDirectories(root);
+        writer.scheduleWithFixedDelay(this::evictIdle, 1, 1, TimeUnit.MINUTES);
+        logger.info("Using sharded user storage in " + root + " (records load on first use)");
+    }
+
+    /* ------------ UserStore ------------ */
+
+    @Override public boolean hasSecret(UUID id) { return load(id).hasSecret(); }
+    @Override public String getSecret(UUID id) { return load(id).secret(); }
+    @Override public void setSecret(UUID id, String base32) { update(id, r -> r.withSecret(base32)); }
+
+    @Override public boolean isEnrolled(UUID id) { return load(id).enrolled(); }
+    @Override public void setEnrolled(UUID id, boolean v) { update(id, r -> r.withEnrolled(v)); }
+
+    @Override public String getLastIP(UUID id) { return load(id).lastIp(); }
+    @Override public void setLastIP(UUID id, String ip) { update(id, r -> r.withLastIp(ip)); }
+
+    @Override public long getLastLoginTime(UUID id) { return load(id).lastLogin(); }
+    @Override public void setLastLoginTime(UUID id, long timestamp) { update(id, r -> r.withLastLogin(timestamp)); }
+
+    @Override public int getFailedAttempts(UUID id) { return load(id).failedAttempts(); }
+    @Override public void setFailedAttempts(UUID id, int attempts) { update(id, r -> r.withFailedAttempts(attempts)); }
+
+    @Override public long getBanExpiry(UUID id) { return load(id).banExpiry(); }
+    @Override public void setBanExpiry(UUID id, long timestamp) { update(id, r -> r.withBanExpiry(timestamp)); }
+
+    @Override public void removeUser(UUID id) { update(id, r -> null); }
+
+    @Override public UserRecord load(UUID id) {
+        UserRecord r = cached(id).row;
+        return r == null ? UserRecord.EMPTY : r;
+    }
+
+    // Only the cache changes here; the writer replaces the file shortly after
+    @Override public UserRecord update(UUID id, UnaryOperator<UserRecord> fn) {
+        UserRecord after;
+        while (true) {
+            Cached c = cached(id);
+            synchronized (c) {
+                if (c.evicted) continue; // lost a race with eviction, reload
+                after = fn.apply(c.row == null ? UserRecord.EMPTY : c.row);
+                UserRecord row = after == null || after.equals(UserRecord.EMPTY) ? null : after;
+                if (Objects.equals(row, c.row)) return after;
+                c.row = row;
+                dirty.put(id, c);
+            }
+            break;
+        }
+        scheduleFlush();
+        return after;
+    }
+
+    // Pending writes are flushed first, so the shard directories hold every user
+    @Override public Collection<UUID> ids() {
+        flush();
+        Set<UUID> out = new HashSet<>();
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(root)) {
+            for (Path shard : shards) {
+                if (!Files.isDirectory(shard)) continue;
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(shard, "*.dat")) {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        try {
+                            out.add(UUID.fromString(name.substring(0, name.length() - 4)));
+                        } catch (IllegalArgumentException ignored) {
+                            // not a user file
+                        }
+                    }
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // no user written yet
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not list " + root, e);
+        }
+        for (var entry : dirty.entrySet()) { // a file the last flush could not write
+            if (entry.getValue().row != null) out.add(entry.getKey());
+            else out.remove(entry.getKey());
+        }
+        return out;
+    }
+
+    @Override public void save() { flush(); }
+
+    // Summing every shard file would mean walking the whole tree on each scrape
+    @Override public long storageBytes() { return -1; }
+
+    @Override public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        cache.clear();
+    }
+
+    /* ------------ Cache ------------ */
+
+    // Blocks on a cache miss; the plugin never calls the store on the server thread.
+    private Cached cached(UUID id) {
+        Cached c = cache.get(id);
+        if (c == null) {
+            Cached loaded = new Cached(read(id));
+            c = cache.putIfAbsent(id, loaded);
+            if (c == null) c = loaded;
+        }
+        c.touched = System.currentTimeMillis();
+        return c;
+    }
+
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - evictAfterMs;
+        for (var entry : cache.entrySet()) {
+            Cached c = entry.getValue();
+            if (c.touched >= cutoff) continue;
+            synchronized (c) {
+                if (dirty.containsKey(entry.getKey())) continue; // the file is older than the cache
+                c.evicted = true;
+                cache.remove(entry.getKey(), c);
+            }
+        }
+    }
+
+    /* ------------ Writer ------------ */
+
+    private void scheduleFlush() {
+        if (flushQueued.compareAndSet(false, true)) {
+            try {
+                writer.execute(() -> {
+                    flushQueued.set(false);
+                    flush();
+                });
+            } catch (RejectedExecutionException shuttingDown) {
+                flushQueued.set(false); // close() does the final flush
+            }
+        }
+    }
+
+    // Writes the latest cached record of every dirty user. Each file is replaced under the user's entry lock,
+    // so eviction never sees a user between leaving the dirty map and reaching their file.
+    private void flush() {
+        synchronized (flushLock) {
+            int failed = 0;
+            String error = null;
+            for (UUID id : dirty.keySet()) {
+                Cached c = dirty.get(id);
+                if (c == null) continue;
+                synchronized (c) {
+                    if (!dirty.remove(id, c)) continue;
+                    try {
+                        if (c.row == null) delete(id);
+                        else write(id, c.row);
+                    } catch (UncheckedIOException e) {
+                        dirty.putIfAbsent(id, c);
+                        failed++;
+                        error = e.getMessage();
+                    }
+                }
+            }
+            if (failed > 0) {
+                logger.warning("Could not write " + failed + " 2FA user files, will retry: " + error);
+                if (!writer.isShutdown()) {
+                    try { writer.schedule(this::scheduleFlush, 5, TimeUnit.SECONDS); } catch (RejectedExecutionException ignored) { }
+                }
+            }
+        }
+    }
+
+    /* ------------ Files ------------ */
+
+    private Path pathOf(UUID id) {
+        String name = id.toString();
+        return root.resolve(name.substring(0, 2)).resolve(name + ".dat");
+    }
+
+    // File layout: [int magic][byte version][record fields][int crc32(everything before)]
+    private UserRecord read(UUID id) {
+        Path file = pathOf(id);
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (NoSuchFileException missing) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read " + file, e);
+        }
+        // A damaged file must not look like "no 2FA set up", so it fails the load instead
+        if (data.length < 9 || data.length > MAX_FILE) throw new IllegalStateException("Corrupt user file " + file);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(data, data.length - 4, 4).getInt()) {
+            throw new IllegalStateException("Checksum mismatch in user file " + file);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 4))) {
+            if (in.readInt() != MAGIC) throw new IllegalStateException(file + " is not a 2FA user file");
+            int version = in.readByte();
+            if (version != VERSION) throw new IllegalStateException("Unsupported user file version " + version + " in " + file);
+            return new UserRecord(readString(in), in.readBoolean(), readString(in), in.readLong(), in.readInt(), in.readLong());
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt user file " + file, e);
+        }
+    }
+
+    private void write(UUID id, UserRecord r) {
+        Path file = pathOf(id);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            writeString(out, r.secret());
+            out.writeBoolean(r.enrolled());
+            writeString(out, r.lastIp());
+            out.writeLong(r.lastLogin());
+            out.writeInt(r.failedAttempts());
+            out.writeLong(r.banExpiry());
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, bytes.toByteArray());
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write " + file, e);
+        }
+    }
+
+    private void delete(UUID id) {
+        try {
+            Files.deleteIfExists(pathOf(id));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not delete " + pathOf(id), e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,21 @@
+package com.forkthus.twofadialog.storage;
+
+/**
+ * Immutable snapshot of everything stored for one player.
+ * A player with no data loads as {@link #EMPTY}.
+ */
+public record UserRecord(String secret, boolean enrolled, String lastIp, long lastLogin, int failedAttempts, long banExpiry) {
+    public static final UserRecord EMPTY = new UserRecord(null, false, null, 0, 0, 0);
+
+    public boolean hasSecret() { return secret != null; }
+
+    public UserRecord withSecret(String base32) { return new UserRecord(base32, enrolled, lastIp, lastLogin, failedAttempts, banExpiry); }
+    public UserRecord withEnrolled(boolean v) { return new UserRecord(secret, v, lastIp, lastLogin, failedAttempts, banExpiry); }
+    public UserRecord withLastIp(String ip) { return new UserRecord(secret, enrolled, ip, lastLogin, failedAttempts, banExpiry); }
+    public UserRecord withLastLogin(long timestamp) { return new UserRecord(secret, enrolled, lastIp, timestamp, failedAttempts, banExpiry); }
+    public UserRecord withFailedAttempts(int attempts) { return new UserRecord(secret, enrolled, lastIp, lastLogin, attempts, banExpiry); }
+    public UserRecord withBanExpiry(long timestamp) { return new UserRecord(secret, enrolled, lastIp, lastLogin, failedAttempts, timestamp); }
+
+    // Successful OTP: enrolled, failures and ban cleared, IP bypass refreshed
+    public UserRecord withLogin(String ip, long timestamp) { return new UserRecord(secret, true, ip, timestamp, 0, 0); }
+}
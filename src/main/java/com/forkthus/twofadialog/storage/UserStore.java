@@ -1,6 +1,14 @@
 package com.forkthus.twofadialog.storage;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.function.BiPredicate;
+import java.util.function.UnaryOperator;
 
 public interface UserStore {
     boolean hasSecret(UUID id);
@@ -19,4 +27,84 @@ public interface UserStore {
     void    removeUser(UUID id);          // remove all data for a user (for reset)
     void    save();
     void    close();
+
+    /* ------------ Record-level access (backends override these to do one read / one write) ------------ */
+
+    // Whole record in one read; UserRecord.EMPTY if the user has no data
+    default UserRecord load(UUID id) {
+        return new UserRecord(getSecret(id), isEnrolled(id), getLastIP(id), getLastLoginTime(id), getFailedAttempts(id), getBanExpiry(id));
+    }
+
+    // Replaces the record with fn(current) and returns the new one; fn returning null removes the user.
+    // This default is a load followed by one setter per changed field and is NOT atomic: a concurrent write can
+    // land in between. Backends must override it to apply fn atomically (every one here does); callers rely on it.
+    default UserRecord update(UUID id, UnaryOperator<UserRecord> fn) {
+        UserRecord before = load(id);
+        UserRecord after = fn.apply(before);
+        if (after == null) { removeUser(id); return null; }
+        if (!Objects.equals(before.secret(), after.secret())) setSecret(id, after.secret());
+        if (before.enrolled() != after.enrolled()) setEnrolled(id, after.enrolled());
+        if (!Objects.equals(before.lastIp(), after.lastIp())) setLastIP(id, after.lastIp());
+        if (before.lastLogin() != after.lastLogin()) setLastLoginTime(id, after.lastLogin());
+        if (before.failedAttempts() != after.failedAttempts()) setFailedAttempts(id, after.failedAttempts());
+        if (before.banExpiry() != after.banExpiry()) setBanExpiry(id, after.banExpiry());
+        return after;
+    }
+
+    // Size of the backing file(s) in bytes, for diagnostics; -1 when not known (e.g. a remote database)
+    default long storageBytes() {
+        return -1;
+    }
+
+    // Batch read; every requested id is present in the result
+    default Map<UUID, UserRecord> loadAll(Collection<UUID> ids) {
+        Map<UUID, UserRecord> out = new HashMap<>(ids.size() * 2);
+        for (UUID id : ids) out.put(id, load(id));
+        return out;
+    }
+
+    /* ------------ Bulk access (admin purge/export/import) ------------ */
+
+    // Snapshot of every user id with stored data, in no particular order
+    Collection<UUID> ids();
+
+    // Whether this backend can hold the record at all (users.packed only fits short base32 secrets and literal IPs);
+    // bulk jobs count the ones it cannot as invalid instead of failing the batch
+    default boolean accepts(UserRecord record) {
+        return true;
+    }
+
+    // Batch write; backends override this to apply the whole batch as one write
+    default void saveAll(Map<UUID, UserRecord> records) {
+        records.forEach((id, r) -> update(id, before -> r));
+    }
+
+    // Batch write of only the users without a secret yet (import never overwrites an enrollment); the check and
+    // the write are one atomic step per user. Returns how many users were written.
+    default int saveAllIfAbsent(Map<UUID, UserRecord> records) {
+        int written = 0;
+        for (Map.Entry<UUID, UserRecord> e : records.entrySet()) {
+            boolean[] wrote = new boolean[1];
+            update(e.getKey(), before -> (wrote[0] = !before.hasSecret()) ? e.getValue() : before);
+            if (wrote[0]) written++;
+        }
+        return written;
+    }
+
+    // Batch remove; backends override this to apply the whole batch as one write
+    default void removeAll(Collection<UUID> ids) {
+        for (UUID id : ids) removeUser(id);
+    }
+
+    // Removes the users whose current record passes test, checked and removed in one atomic step per user
+    // (purge must not act on a record read before the player logged in again). Returns the removed ids.
+    default List<UUID> removeAllIf(Collection<UUID> ids, BiPredicate<UUID, UserRecord> test) {
+        List<UUID> removed = new ArrayList<>();
+        for (UUID id : ids) {
+            boolean[] gone = new boolean[1];
+            update(id, r -> (gone[0] = !r.equals(UserRecord.EMPTY) && test.test(id, r)) ? null : r);
+            if (gone[0]) removed.add(id);
+        }
+        return removed;
+    }
 }
@@ -1,52 +1,256 @@
 package com.forkthus.twofadialog.storage;
 
-import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.YamlConfiguration;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+import java.util.function.UnaryOperator;
 
 public final class YamlUserStore implements UserStore {
     private final File file;
-    private final FileConfiguration cfg;
+    private final Map<String, UserRecord> users = new LinkedHashMap<>(); // users.yml in memory, in file order
+    private final Object lock = new Object();      // guards users and dirty
+    private final Object writeLock = new Object(); // serializes flushes so an older snapshot never overwrites a newer one
+    private final Set<String> dirty = new HashSet<>(); // users changed since the last flush
+    private final ScheduledExecutorService flusher;    // null = write-through (flush on every change)
 
-    public YamlUserStore(File dataFolder) {
+    public YamlUserStore(File dataFolder) { this(dataFolder, 0); }
+
+    public YamlUserStore(File dataFolder, long flushIntervalMs) {
         this.file = new File(dataFolder, "users.yml");
-        this.cfg  = YamlConfiguration.loadConfiguration(file);
-    }
-
-    private String base(String id) { return "users." + id; }
-
-    @Override public boolean hasSecret(UUID id) { return cfg.contains(base(id.toString()) + ".secret"); }
-    @Override public String getSecret(UUID id) { return cfg.getString(base(id.toString()) + ".secret"); }
-
-    @Override public void setSecret(UUID id, String base32) {
-        String b = base(id.toString());
-        cfg.set(b + ".secret", base32);
-        if (!cfg.contains(b + ".enrolled")) cfg.set(b + ".enrolled", false);
-        save();
-    }
-
-    @Override public boolean isEnrolled(UUID id) { return cfg.getBoolean(base(id.toString()) + ".enrolled", false); }
-    @Override public void setEnrolled(UUID id, boolean v) { cfg.set(base(id.toString()) + ".enrolled", v); save(); }
-    
-    @Override public String getLastIP(UUID id) { return cfg.getString(base(id.toString()) + ".lastip"); }
-    @Override public void setLastIP(UUID id, String ip) { cfg.set(base(id.toString()) + ".lastip", ip); save(); }
-    
-    @Override public long getLastLoginTime(UUID id) { return cfg.getLong(base(id.toString()) + ".lastlogin", 0); }
-    @Override public void setLastLoginTime(UUID id, long timestamp) { cfg.set(base(id.toString()) + ".lastlogin", timestamp); save(); }
-    
-    @Override public int getFailedAttempts(UUID id) { return cfg.getInt(base(id.toString()) + ".failedattempts", 0); }
-    @Override public void setFailedAttempts(UUID id, int attempts) { cfg.set(base(id.toString()) + ".failedattempts", attempts); save(); }
-    
-    @Override public long getBanExpiry(UUID id) { return cfg.getLong(base(id.toString()) + ".banexpiry", 0); }
-    @Override public void setBanExpiry(UUID id, long timestamp) { cfg.set(base(id.toString()) + ".banexpiry", timestamp); save(); }
-    
-    @Override public void removeUser(UUID id) { cfg.set(base(id.toString()), null); save(); }
-
-    @Override public void save() {
-        try { cfg.save(file); } catch (IOException e) { e.printStackTrace(); }
-    }
-    @Override public void close() { save(); }
+        ConfigurationSection section = YamlConfiguration.loadConfiguration(file).getConfigurationSection("users");
+        if (section != null) {
+            for (String id : section.getKeys(false)) {
+                ConfigurationSection s = section.getConfigurationSection(id);
+                if (s == null) continue;
+                users.put(id, new UserRecord(s.getString("secret"), s.getBoolean("enrolled", false), s.getString("lastip"),
+                        s.getLong("lastlogin", 0), s.getInt("failedattempts", 0), s.getLong("banexpiry", 0)));
+            }
+        }
+        if (flushIntervalMs > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "TwoFADialog-UserStore-Flush");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    @Override public boolean hasSecret(UUID id) { return load(id).hasSecret(); }
+    @Override public String getSecret(UUID id) { return load(id).secret(); }
+    @Override public void setSecret(UUID id, String base32) { update(id, r -> r.withSecret(base32)); }
+
+    @Override public boolean isEnrolled(UUID id) { return load(id).enrolled(); }
+    @Override public void setEnrolled(UUID id, boolean v) { update(id, r -> r.withEnrolled(v)); }
+
+    @Override public String getLastIP(UUID id) { return load(id).lastIp(); }
+    @Override public void setLastIP(UUID id, String ip) { update(id, r -> r.withLastIp(ip)); }
+
+    @Override public long getLastLoginTime(UUID id) { return load(id).lastLogin(); }
+    @Override public void setLastLoginTime(UUID id, long timestamp) { update(id, r -> r.withLastLogin(timestamp)); }
+
+    @Override public int getFailedAttempts(UUID id) { return load(id).failedAttempts(); }
+    @Override public void setFailedAttempts(UUID id, int attempts) { update(id, r -> r.withFailedAttempts(attempts)); }
+
+    @Override public long getBanExpiry(UUID id) { return load(id).banExpiry(); }
+    @Override public void setBanExpiry(UUID id, long timestamp) { update(id, r -> r.withBanExpiry(timestamp)); }
+
+    @Override public void removeUser(UUID id) { update(id, r -> null); }
+
+    @Override public UserRecord load(UUID id) { synchronized (lock) { return read(id.toString()); } }
+
+    @Override public UserRecord update(UUID id, UnaryOperator<UserRecord> fn) {
+        UserRecord after;
+        synchronized (lock) {
+            String key = id.toString();
+            after = fn.apply(read(key));
+            write(key, after);
+        }
+        markDirty(id);
+        return after;
+    }
+
+    @Override public Map<UUID, UserRecord> loadAll(Collection<UUID> ids) {
+        Map<UUID, UserRecord> out = new HashMap<>(ids.size() * 2);
+        synchronized (lock) {
+            for (UUID id : ids) out.put(id, read(id.toString()));
+        }
+        return out;
+    }
+
+    @Override public Collection<UUID> ids() {
+        List<UUID> out = new ArrayList<>();
+        synchronized (lock) {
+            for (String key : users.keySet()) {
+                try {
+                    out.add(UUID.fromString(key));
+                } catch (IllegalArgumentException ignored) {
+                    // not a player entry
+                }
+            }
+        }
+        return out;
+    }
+
+    // One lock for the whole batch and, in write-through mode, one rewrite of users.yml instead of one per user
+    @Override public void saveAll(Map<UUID, UserRecord> records) {
+        synchronized (lock) {
+            records.forEach((id, r) -> {
+                write(id.toString(), r);
+                dirty.add(id.toString());
+            });
+        }
+        if (flusher == null) flush();
+    }
+
+    @Override public int saveAllIfAbsent(Map<UUID, UserRecord> records) {
+        int written = 0;
+        synchronized (lock) {
+            for (Map.Entry<UUID, UserRecord> e : records.entrySet()) {
+                String id = e.getKey().toString();
+                if (read(id).hasSecret()) continue;
+                write(id, e.getValue());
+                dirty.add(id);
+                written++;
+            }
+        }
+        if (written > 0 && flusher == null) flush();
+        return written;
+    }
+
+    @Override public void removeAll(Collection<UUID> ids) {
+        synchronized (lock) {
+            for (UUID id : ids) {
+                write(id.toString(), null);
+                dirty.add(id.toString());
+            }
+        }
+        if (flusher == null) flush();
+    }
+
+    @Override public List<UUID> removeAllIf(Collection<UUID> ids, BiPredicate<UUID, UserRecord> test) {
+        List<UUID> removed = new ArrayList<>();
+        synchronized (lock) {
+            for (UUID id : ids) {
+                UserRecord r = read(id.toString());
+                if (r.equals(UserRecord.EMPTY) || !test.test(id, r)) continue;
+                write(id.toString(), null);
+                dirty.add(id.toString());
+                removed.add(id);
+            }
+        }
+        if (!removed.isEmpty() && flusher == null) flush();
+        return removed;
+    }
+
+    // Caller holds lock
+    private UserRecord read(String id) {
+        UserRecord r = users.get(id);
+        return r == null ? UserRecord.EMPTY : r;
+    }
+
+    // Caller holds lock
+    private void write(String id, UserRecord r) {
+        if (r == null) users.remove(id);
+        else users.put(id, r);
+    }
+
+    private void markDirty(UUID id) {
+        synchronized (lock) { dirty.add(id.toString()); }
+        if (flusher == null) flush();
+    }
+
+    // Coalesces every pending change into one atomic rewrite of users.yml (temp file + rename).
+    // The lock is held only to copy the record references; YAML is built and written outside it.
+    private void flush() {
+        synchronized (writeLock) {
+            Set<String> flushed;
+            String[] ids;
+            UserRecord[] records;
+            synchronized (lock) {
+                if (dirty.isEmpty()) return;
+                flushed = new HashSet<>(dirty);
+                dirty.clear();
+                ids = new String[users.size()];
+                records = new UserRecord[users.size()];
+                int i = 0;
+                for (Map.Entry<String, UserRecord> e : users.entrySet()) {
+                    ids[i] = e.getKey();
+                    records[i++] = e.getValue();
+                }
+            }
+            try {
+                writeAtomically(render(ids, records));
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (lock) { dirty.addAll(flushed); } // retry on the next flush
+            }
+        }
+    }
+
+    // Defaults are left out to keep users.yml small
+    private static String render(String[] ids, UserRecord[] records) {
+        YamlConfiguration out = new YamlConfiguration();
+        for (int i = 0; i < ids.length; i++) {
+            String b = "users." + ids[i];
+            UserRecord r = records[i];
+            out.set(b + ".secret", r.secret());
+            out.set(b + ".enrolled", r.enrolled());
+            out.set(b + ".lastip", r.lastIp());
+            out.set(b + ".lastlogin", r.lastLogin() == 0 ? null : r.lastLogin());
+            out.set(b + ".failedattempts", r.failedAttempts() == 0 ? null : r.failedAttempts());
+            out.set(b + ".banexpiry", r.banExpiry() == 0 ? null : r.banExpiry());
+        }
+        return out.saveToString();
+    }
+
+    private void writeAtomically(String data) throws IOException {
+        Path target = file.toPath();
+        Path tmp = target.resolveSibling(file.getName() + ".tmp");
+        Files.createDirectories(target.getParent());
+        Files.writeString(tmp, data, StandardCharsets.UTF_8);
+        try {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override public void save() { flush(); }
+
+    @Override public long storageBytes() { return file.length(); }
+
+    @Override public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush(); // final blocking flush
+    }
 }
@@ -1,6 +1,7 @@
 package com.forkthus.twofadialog.ui;
 
 import com.forkthus.twofadialog.config.ConfigManager;
+import com.forkthus.twofadialog.config.Settings;
 import io.papermc.paper.dialog.*;
 import io.papermc.paper.registry.data.dialog.*;
 import io.papermc.paper.registry.data.dialog.body.DialogBody;
@@ -11,6 +12,10 @@ import net.kyori.adventure.key.Key;
 import net.kyori.adventure.text.Component;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 public final class Dialogs {
     public static final Key ACTION_QR_GIVE   = Key.key("twf:qr/give");
@@ -19,8 +24,75 @@ public final class Dialogs {
     public static final Key ACTION_ASK_NOTY  = Key.key("twf:ask/notyet");
     public static final Key ACTION_LOGIN_SUB = Key.key("twf:login/submit");
     public static final Key ACTION_LOGIN_LEAVE = Key.key("twf:login/leave");
+    public static final Key ACTION_QUEUE_LEAVE = Key.key("twf:queue/leave");
+
+    // Built dialogs only differ by type, the seconds (or queue position) shown and the error line,
+    // so a login wave reuses them instead of rebuilding the same tree per player
+    private enum Type { QUEUED, SCAN_PROMPT, ASK_FINISHED, LOGIN }
+    private record CacheKey(Type type, int number, String error) { }
+    private static final int CACHE_MAX = 1024;
+    private static final Map<CacheKey, Dialog> CACHE = new ConcurrentHashMap<>();
+    private static volatile Settings cachedFor; // the config snapshot the cached dialogs were built from
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+
+    public static long cacheHits() { return HITS.sum(); }
+    public static long cacheMisses() { return MISSES.sum(); }
+
+    private static Dialog cached(ConfigManager config, Type type, int number, String error, Supplier<Dialog> build) {
+        Settings settings = config.settings();
+        if (cachedFor != settings) { // config reloaded: every text may have changed
+            CACHE.clear();
+            cachedFor = settings;
+        }
+        CacheKey key = new CacheKey(type, number, error);
+        Dialog dialog = CACHE.get(key);
+        if (dialog != null) {
+            HITS.increment();
+            return dialog;
+        }
+        MISSES.increment();
+        if (CACHE.size() >= CACHE_MAX) CACHE.clear();
+        dialog = build.get();
+        CACHE.put(key, dialog);
+        return dialog;
+    }
+
+    // Shown while a join storm is being admitted; replaced by the real prompt once the session starts
+    public static Dialog queued(ConfigManager config, int position) {
+        return cached(config, Type.QUEUED, position, null, () -> buildQueued(config, position));
+    }
 
     public static Dialog scanPrompt(ConfigManager config, int timeLeft) {
+        return cached(config, Type.SCAN_PROMPT, timeLeft, null, () -> buildScanPrompt(config, timeLeft));
+    }
+
+    public static Dialog askFinished(ConfigManager config, int timeLeft) {
+        return cached(config, Type.ASK_FINISHED, timeLeft, null, () -> buildAskFinished(config, timeLeft));
+    }
+
+    public static Dialog login(ConfigManager config, int timeLeft, String errorOrNull) {
+        return cached(config, Type.LOGIN, timeLeft, errorOrNull, () -> buildLogin(config, timeLeft, errorOrNull));
+    }
+
+    private static Dialog buildQueued(ConfigManager config, int position) {
+        return Dialog.create(b -> b.empty()
+                .base(DialogBase.builder(Component.text(config.getQueuedTitle()))
+                        .canCloseWithEscape(false)
+                        .body(List.of(DialogBody.plainMessage(Component.text(config.getQueuedBody(position)))))
+                        .build())
+                .type(DialogType.notice(
+                        ActionButton.create(
+                                Component.text(config.getQueuedLeaveButton()),
+                                Component.text(config.getQueuedLeaveDesc()),
+                                120,
+                                DialogAction.customClick(ACTION_QUEUE_LEAVE, null)
+                        )
+                ))
+        );
+    }
+
+    private static Dialog buildScanPrompt(ConfigManager config, int timeLeft) {
         return Dialog.create(b -> b.empty()
                 .base(DialogBase.builder(Component.text(config.getScanPromptTitle()))
                         .canCloseWithEscape(false)
@@ -47,7 +119,7 @@ public final class Dialogs {
         );
     }
 
-    public static Dialog askFinished(ConfigManager config, int timeLeft) {
+    private static Dialog buildAskFinished(ConfigManager config, int timeLeft) {
         return Dialog.create(b -> b.empty()
                 .base(DialogBase.builder(Component.text(config.getAskFinishedTitle()))
                         .body(List.of(DialogBody.plainMessage(Component.text(config.getAskFinishedBody(timeLeft)))))
@@ -73,7 +145,7 @@ public final class Dialogs {
         );
     }
 
-    public static Dialog login(ConfigManager config, int timeLeft, String errorOrNull) {
+    private static Dialog buildLogin(ConfigManager config, int timeLeft, String errorOrNull) {
         return Dialog.create(b -> b.empty()
                 .base(DialogBase.builder(Component.text(config.getLoginTitle()))
                         .body(errorOrNull == null ? 
@@ -0,0 +1,40 @@
+package com.forkthus.twofadialog.admin;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class MigrationCheckpointTest {
+    private static final UUID A = new UUID(1, 1), B = new UUID(2, 2), C = new UUID(3, 3), D = new UUID(4, 4);
+
+    @TempDir File dir;
+
+    @Test
+    void onlyTheSameMigrationResumes() throws Exception {
+        assertNull(new MigrationCheckpoint(dir, "yaml", "packed").read());
+        new MigrationCheckpoint(dir, "yaml", "packed").write(B);
+        new MigrationCheckpoint(dir, "yaml", "packed").write(C); // replaced after every batch
+
+        assertEquals(C, new MigrationCheckpoint(dir, "yaml", "packed").read());
+        assertNull(new MigrationCheckpoint(dir, "yaml", "journal").read());
+        assertNull(new MigrationCheckpoint(dir, "packed", "yaml").read());
+
+        new MigrationCheckpoint(dir, "yaml", "packed").delete();
+        assertNull(new MigrationCheckpoint(dir, "yaml", "packed").read());
+    }
+
+    @Test
+    void resumesAfterTheCheckpointedUser() {
+        UUID[] sorted = { A, B, D };
+        assertEquals(0, MigrationCheckpoint.resumeIndex(sorted, null));
+        assertEquals(1, MigrationCheckpoint.resumeIndex(sorted, A));
+        assertEquals(3, MigrationCheckpoint.resumeIndex(sorted, D));
+        assertEquals(2, MigrationCheckpoint.resumeIndex(sorted, C)); // removed since: continue with the next one
+        assertEquals(0, MigrationCheckpoint.resumeIndex(sorted, new UUID(0, 0)));
+    }
+}
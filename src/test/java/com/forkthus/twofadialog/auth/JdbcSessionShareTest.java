@@ -0,0 +1,60 @@
+package com.forkthus.twofadialog.auth;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Two servers on one machine sharing a SQLite file; writes are asynchronous, so reads poll for them
+class JdbcSessionShareTest {
+    private static final Logger LOG = Logger.getLogger("JdbcSessionShareTest");
+    private static final String IP = "203.0.113.7", OTHER_IP = "198.51.100.1";
+
+    @TempDir File dir;
+
+    @Test
+    void sessionPublishedOnOneServerIsValidOnTheOther() throws Exception {
+        File db = new File(dir, "sessions.db");
+        JdbcSessionShare lobby = JdbcSessionShare.sqlite(db, "twofa_sessions", LOG);
+        JdbcSessionShare survival = JdbcSessionShare.sqlite(db, "twofa_sessions", LOG);
+        try {
+            UUID id = UUID.randomUUID();
+            long now = System.currentTimeMillis(), expires = now + 60_000;
+            assertEquals(0, survival.validUntil(id, IP, true, now));
+
+            lobby.publish(id, IP, expires);
+            assertEquals(expires, await(() -> survival.validUntil(id, IP, true, now), expires));
+            assertEquals(0, survival.validUntil(id, OTHER_IP, true, now));
+            assertEquals(expires, survival.validUntil(id, OTHER_IP, false, now));
+            assertEquals(0, survival.validUntil(id, IP, true, expires)); // expired
+            assertEquals(0, survival.validUntil(id, IP, false, expires + 1));
+
+            // A later login elsewhere replaces the row
+            survival.publish(id, OTHER_IP, expires + 1_000);
+            assertEquals(expires + 1_000, await(() -> lobby.validUntil(id, OTHER_IP, true, now), expires + 1_000));
+            assertEquals(0, lobby.validUntil(id, IP, true, now));
+
+            survival.revoke(id);
+            assertEquals(0, await(() -> lobby.validUntil(id, OTHER_IP, false, now), 0));
+        } finally {
+            lobby.close();
+            survival.close();
+        }
+    }
+
+    // Polls until the value arrives or five seconds pass, then returns the last value read
+    private static long await(LongSupplier read, long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        long value = read.getAsLong();
+        while (value != expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            value = read.getAsLong();
+        }
+        return value;
+    }
+}
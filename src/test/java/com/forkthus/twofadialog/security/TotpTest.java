@@ -0,0 +1,44 @@
+package com.forkthus.twofadialog.security;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// RFC 6238 Appendix B, SHA-1 rows, truncated to the 6 digits authenticator apps show
+class TotpTest {
+    private static final String SECRET = "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ"; // base32 of ASCII "12345678901234567890"
+
+    private static final long[] TIMES = { 59L, 1111111109L, 1111111111L, 1234567890L, 2000000000L, 20000000000L };
+    private static final int[] CODES = { 287082, 81804, 50471, 5924, 279037, 353130 }; // 94287082, 07081804, ...
+
+    @Test
+    void generateMatchesRfcVectors() {
+        for (int i = 0; i < TIMES.length; i++) {
+            assertEquals(CODES[i], Totp.generate(SECRET, TIMES[i] / 30), "T = " + TIMES[i]);
+        }
+    }
+
+    @Test
+    void verifyAcceptsCodesWithinSkew() {
+        for (int i = 0; i < TIMES.length; i++) {
+            long step = TIMES[i] / 30;
+            assertTrue(Totp.verify(SECRET, CODES[i], 0, step));
+            assertTrue(Totp.verify(SECRET, CODES[i], 1, step - 1));
+            assertTrue(Totp.verify(SECRET, CODES[i], 1, step + 1));
+            assertFalse(Totp.verify(SECRET, CODES[i], 1, step - 2));
+            assertFalse(Totp.verify(SECRET, CODES[i], 1, step + 2));
+        }
+    }
+
+    @Test
+    void verifyParsesSixDigitStrings() {
+        long step = 1234567890L / 30;
+        assertEquals(5924, Totp.parseCode("005924"));
+        assertEquals(-1, Totp.parseCode("5924"));
+        assertEquals(-1, Totp.parseCode("00592a"));
+        assertFalse(Totp.verify(SECRET, -1, 1, step));
+        assertFalse(Totp.verify(null, 5924, 1, step));
+    }
+}
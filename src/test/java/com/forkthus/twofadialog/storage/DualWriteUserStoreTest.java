@@ -0,0 +1,152 @@
+package com.forkthus.twofadialog.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Drives the store the way StoreMigration does: copy in sorted batches, verify, reconcile, retire
+class DualWriteUserStoreTest {
+    private static final Logger LOG = Logger.getLogger("DualWriteUserStoreTest");
+    private static final int BATCH = 500;
+
+    @TempDir File dir;
+
+    @Test
+    void resumedCopyVerifyAndReconcileCatchUpWithChangesInBetween() throws Exception {
+        File from = new File(dir, "from"), to = new File(dir, "to");
+        JournalUserStore current = new JournalUserStore(from, false, 100_000, LOG);
+        for (int i = 0; i < 2_000; i++) current.update(UUID.randomUUID(), r -> user(7));
+
+        // First run copies three batches, then the server stops
+        JournalUserStore next = new JournalUserStore(to, false, 100_000, LOG);
+        DualWriteUserStore dual = new DualWriteUserStore(current, next, LOG);
+        UUID[] all = sorted(dual.ids());
+        for (int i = 0; i < 3 * BATCH; i += BATCH) dual.copy(Arrays.asList(all).subList(i, i + BATCH));
+        UUID checkpoint = all[3 * BATCH - 1];
+        dual.drain();
+        next.close();
+
+        // Changes while no migration runs reach only the current store
+        UUID changed = all[0], removed = all[1];
+        current.update(changed, r -> r.withFailedAttempts(3));
+        current.removeUser(removed);
+        UUID created = new UUID(Long.MIN_VALUE, 1); // sorts before the checkpoint, so the resumed copy skips it
+        current.update(created, r -> user(8));
+
+        // Second run resumes after the checkpoint; verify repairs the two users the copy skipped, and
+        // reconcile drops the one only the next store still has
+        next = new JournalUserStore(to, false, 100_000, LOG);
+        dual = new DualWriteUserStore(current, next, LOG);
+        all = sorted(dual.ids());
+        int first = Arrays.binarySearch(all, checkpoint) + 1;
+        assertEquals(3 * BATCH, first);
+        for (int i = first; i < all.length; i += BATCH) dual.copy(Arrays.asList(all).subList(i, Math.min(all.length, i + BATCH)));
+        int repaired = 0;
+        for (int i = 0; i < all.length; i += BATCH) repaired += dual.verify(Arrays.asList(all).subList(i, Math.min(all.length, i + BATCH))).repaired();
+        assertEquals(2, repaired);
+        assertEquals(user(7), next.load(removed));
+        assertArrayEquals(new long[] { 2_000, 2_000 }, dual.reconcile());
+        assertEquals(UserRecord.EMPTY, next.load(removed));
+        assertEquals(user(7).withFailedAttempts(3), next.load(changed));
+        assertEquals(0, dual.retire());
+
+        dual.update(created, r -> r.withEnrolled(true)); // retired: reaches the next store only
+        assertEquals(user(8).withEnrolled(true), next.load(created));
+        assertEquals(user(8), current.load(created));
+        current.close();
+        next.close();
+
+        JournalUserStore reopened = new JournalUserStore(to, false, 100_000, LOG);
+        assertEquals(UserRecord.EMPTY, reopened.load(removed));
+        assertEquals(2_000, reopened.ids().size());
+        reopened.close();
+    }
+
+    @Test
+    void retireVerifiesUsersWhoseMirrorFailedAgain() {
+        MemoryStore current = new MemoryStore(), next = new MemoryStore();
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            UUID id = UUID.randomUUID();
+            ids.add(id);
+            current.update(id, r -> user(1));
+        }
+        DualWriteUserStore dual = new DualWriteUserStore(current, next, LOG);
+        dual.copy(ids);
+        assertEquals(0, dual.verify(ids).repaired());
+
+        // After its verify batch, a user's mirrored write fails; the live write still succeeds
+        next.failWrites = true;
+        dual.update(ids.get(0), r -> r.withLastLogin(99));
+        assertEquals(1, dual.mirrorFailures());
+        assertEquals(99, dual.load(ids.get(0)).lastLogin());
+
+        // Still failing: retire refuses and the dual store keeps serving from the current one
+        assertThrows(RuntimeException.class, dual::retire);
+        dual.update(ids.get(1), r -> r.withLastLogin(98));
+        assertEquals(98, current.load(ids.get(1)).lastLogin());
+
+        next.failWrites = false;
+        assertEquals(2, dual.retire());
+        for (UUID id : ids) assertEquals(current.load(id), next.load(id));
+    }
+
+    private static UserRecord user(long lastLogin) {
+        return new UserRecord("JBSWY3DPEHPK3PXP", true, "203.0.113.7", lastLogin, 0, 0);
+    }
+
+    private static UUID[] sorted(Collection<UUID> ids) {
+        UUID[] out = ids.toArray(new UUID[0]);
+        Arrays.sort(out);
+        return out;
+    }
+
+    // Map-backed store whose writes can be made to fail
+    private static final class MemoryStore implements UserStore {
+        private final Map<UUID, UserRecord> users = new ConcurrentHashMap<>();
+        volatile boolean failWrites;
+
+        @Override public UserRecord load(UUID id) { return users.getOrDefault(id, UserRecord.EMPTY); }
+
+        @Override public synchronized UserRecord update(UUID id, UnaryOperator<UserRecord> fn) {
+            if (failWrites) throw new IllegalStateException("write failed");
+            UserRecord after = fn.apply(load(id));
+            if (after == null || after.equals(UserRecord.EMPTY)) users.remove(id);
+            else users.put(id, after);
+            return after;
+        }
+
+        @Override public Collection<UUID> ids() { return new ArrayList<>(users.keySet()); }
+
+        @Override public boolean hasSecret(UUID id) { return load(id).hasSecret(); }
+        @Override public String getSecret(UUID id) { return load(id).secret(); }
+        @Override public void setSecret(UUID id, String base32) { update(id, r -> r.withSecret(base32)); }
+        @Override public boolean isEnrolled(UUID id) { return load(id).enrolled(); }
+        @Override public void setEnrolled(UUID id, boolean v) { update(id, r -> r.withEnrolled(v)); }
+        @Override public String getLastIP(UUID id) { return load(id).lastIp(); }
+        @Override public void setLastIP(UUID id, String ip) { update(id, r -> r.withLastIp(ip)); }
+        @Override public long getLastLoginTime(UUID id) { return load(id).lastLogin(); }
+        @Override public void setLastLoginTime(UUID id, long timestamp) { update(id, r -> r.withLastLogin(timestamp)); }
+        @Override public int getFailedAttempts(UUID id) { return load(id).failedAttempts(); }
+        @Override public void setFailedAttempts(UUID id, int attempts) { update(id, r -> r.withFailedAttempts(attempts)); }
+        @Override public long getBanExpiry(UUID id) { return load(id).banExpiry(); }
+        @Override public void setBanExpiry(UUID id, long timestamp) { update(id, r -> r.withBanExpiry(timestamp)); }
+        @Override public void removeUser(UUID id) { update(id, r -> null); }
+        @Override public void save() { }
+        @Override public void close() { }
+    }
+}
@@ -0,0 +1,155 @@
+package com.forkthus.twofadialog.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JournalUserStoreTest {
+    private static final UserRecord ALICE = new UserRecord("JBSWY3DPEHPK3PXP", true, "203.0.113.7", 1_700_000_000_000L, 1, 0);
+
+    @TempDir File dir;
+
+    @Test
+    void replayRestoresEveryKindOfRecord() throws Exception {
+        UUID setters = UUID.randomUUID(), updated = UUID.randomUUID(), removed = UUID.randomUUID(), batched = UUID.randomUUID();
+        JournalUserStore store = open(1_000);
+        store.setSecret(setters, "KRSXG5CTMVRXEZLU");
+        store.setEnrolled(setters, true);
+        store.setLastIP(setters, "198.51.100.1");
+        store.setLastLoginTime(setters, 42);
+        store.setFailedAttempts(setters, 3);
+        store.setBanExpiry(setters, 99);
+        store.update(updated, r -> ALICE);
+        store.update(updated, r -> r.withFailedAttempts(0));
+        store.update(removed, r -> ALICE);
+        store.removeUser(removed);
+        store.saveAll(Map.of(batched, ALICE.withLastIp(null)));
+        store.close();
+
+        store = open(1_000);
+        assertEquals(new UserRecord("KRSXG5CTMVRXEZLU", true, "198.51.100.1", 42, 3, 99), store.load(setters));
+        assertEquals(ALICE.withFailedAttempts(0), store.load(updated));
+        assertEquals(UserRecord.EMPTY, store.load(removed));
+        assertEquals(ALICE.withLastIp(null), store.load(batched));
+        assertEquals(3, store.ids().size());
+        store.close();
+    }
+
+    @Test
+    void tornTailIsTruncatedAndAppendsCarryOn() throws Exception {
+        UUID kept = UUID.randomUUID(), torn = UUID.randomUUID(), later = UUID.randomUUID();
+        JournalUserStore store = open(1_000);
+        store.update(kept, r -> ALICE);
+        store.close();
+        long intact = journal().length();
+
+        store = open(1_000);
+        store.update(torn, r -> ALICE);
+        store.close();
+        try (RandomAccessFile file = new RandomAccessFile(journal(), "rw")) {
+            file.setLength(intact + (file.length() - intact) / 2); // crash halfway through the record
+        }
+
+        store = open(1_000);
+        assertEquals(ALICE, store.load(kept));
+        assertEquals(UserRecord.EMPTY, store.load(torn));
+        assertEquals(intact, journal().length());
+        store.update(later, r -> ALICE);
+        store.close();
+
+        store = open(1_000);
+        assertEquals(ALICE, store.load(kept));
+        assertEquals(ALICE, store.load(later));
+        store.close();
+    }
+
+    @Test
+    void recordFailingItsChecksumEndsTheReplay() throws Exception {
+        UUID kept = UUID.randomUUID(), damaged = UUID.randomUUID();
+        JournalUserStore store = open(1_000);
+        store.update(kept, r -> ALICE);
+        long intact = journal().length();
+        store.update(damaged, r -> ALICE);
+        store.close();
+        try (RandomAccessFile file = new RandomAccessFile(journal(), "rw")) {
+            file.seek(intact + 4 + 17); // first byte after op and uuid
+            int b = file.read();
+            file.seek(intact + 4 + 17);
+            file.write(b ^ 0xFF);
+        }
+
+        store = open(1_000);
+        assertEquals(ALICE, store.load(kept));
+        assertEquals(UserRecord.EMPTY, store.load(damaged));
+        assertEquals(intact, journal().length());
+        store.close();
+    }
+
+    @Test
+    void compactionKeepsAppendsThatArriveWhileItRuns() throws Exception {
+        AtomicInteger compactions = new AtomicInteger();
+        Logger logger = Logger.getAnonymousLogger();
+        logger.setUseParentHandlers(false);
+        logger.addHandler(new Handler() {
+            @Override public void publish(LogRecord record) {
+                if (record.getMessage().startsWith("Compacted")) compactions.incrementAndGet();
+            }
+            @Override public void flush() { }
+            @Override public void close() { }
+        });
+        JournalUserStore store = new JournalUserStore(dir, false, 100, logger);
+        Map<UUID, UserRecord> expected = new ConcurrentHashMap<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            List<UUID> own = new ArrayList<>(); // each writer has its own users, so the last write wins
+            for (int i = 0; i < 50; i++) own.add(UUID.randomUUID());
+            writers.add(new Thread(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    UUID id = own.get(i % own.size());
+                    if (i % 7 == 0) {
+                        store.removeUser(id);
+                        expected.remove(id);
+                    } else {
+                        UserRecord r = ALICE.withLastLogin(i);
+                        store.update(id, before -> r);
+                        expected.put(id, r);
+                    }
+                }
+            }));
+        }
+        writers.forEach(Thread::start);
+        for (Thread w : writers) w.join();
+        store.close(); // waits for a running compaction
+        assertTrue(compactions.get() > 0, "no compaction ran");
+        assertFalse(new File(dir, "users.journal.compact").exists());
+
+        JournalUserStore reopened = open(100);
+        Map<UUID, UserRecord> actual = new HashMap<>(reopened.loadAll(reopened.ids()));
+        assertEquals(expected, actual);
+        reopened.close();
+    }
+
+    private JournalUserStore open(long compactThreshold) throws Exception {
+        return new JournalUserStore(dir, false, compactThreshold, Logger.getLogger("JournalUserStoreTest"));
+    }
+
+    private File journal() {
+        return new File(dir, "users.journal");
+    }
+}
@@ -0,0 +1,95 @@
+package com.forkthus.twofadialog.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PackedUserStoreTest {
+    private static final Logger LOG = Logger.getLogger("PackedUserStoreTest");
+    private static final int HEADER_SIZE = 64, SECRET = 20; // see PackedUserStore and PackedUserTable
+
+    @TempDir File dir;
+
+    @Test
+    void importBatchSkipsDamagedUsersAndRecordsWithoutAPackedForm() throws Exception {
+        UUID damaged = UUID.randomUUID(), enrolled = UUID.randomUUID();
+        PackedUserStore before = new PackedUserStore(dir, LOG);
+        before.update(damaged, r -> r.withSecret("JBSWY3DPEHPK3PXP"));
+        before.update(enrolled, r -> r.withSecret("JBSWY3DPEHPK3PXP").withEnrolled(true));
+        before.close();
+        tearSlotOf(damaged);
+
+        PackedUserStore store = new PackedUserStore(dir, LOG);
+        UUID fresh = UUID.randomUUID(), longSecret = UUID.randomUUID();
+        UserRecord imported = new UserRecord("KRSXG5CTMVRXEZLU", true, null, 0, 0, 0);
+        Map<UUID, UserRecord> batch = new LinkedHashMap<>();
+        batch.put(damaged, imported);
+        batch.put(enrolled, imported);
+        batch.put(longSecret, imported.withSecret("JBSWY3DPEHPK3PXPJBSWY3DPEHPK3PXPJBSWY3DP"));
+        batch.put(fresh, imported);
+        assertFalse(store.accepts(batch.get(longSecret)));
+
+        assertEquals(1, store.saveAllIfAbsent(batch));
+        assertEquals(imported, store.load(fresh));
+        assertEquals("JBSWY3DPEHPK3PXP", store.load(enrolled).secret());
+        assertFalse(store.load(longSecret).hasSecret());
+        assertThrows(IllegalStateException.class, () -> store.load(damaged)); // refused, not read as unenrolled
+
+        store.saveAll(batch); // the same batch overwrites what it can
+        assertEquals(imported, store.load(enrolled));
+        assertFalse(store.load(longSecret).hasSecret());
+        assertThrows(IllegalStateException.class, () -> store.load(damaged));
+        store.close();
+    }
+
+    @Test
+    void growKeepsEveryUserAcrossARestart() throws Exception {
+        Map<UUID, UserRecord> expected = new HashMap<>();
+        PackedUserStore store = new PackedUserStore(dir, LOG);
+        for (int i = 0; i < 5_000; i++) { // from 16 slots, several grows
+            UUID id = UUID.randomUUID();
+            UserRecord r = new UserRecord("JBSWY3DPEHPK3PXP", true, "10.0." + (i / 250) + "." + (i % 250), i, 0, 0);
+            store.update(id, before -> r);
+            expected.put(id, r);
+            if (i % 4 == 0) {
+                store.removeUser(id);
+                expected.remove(id);
+            }
+        }
+        assertEquals(expected.size(), store.ids().size());
+        store.close();
+        assertFalse(new File(dir, "users.packed.grow").exists());
+
+        store = new PackedUserStore(dir, LOG);
+        assertEquals(expected.size(), store.ids().size());
+        for (var e : expected.entrySet()) assertEquals(e.getValue(), store.load(e.getKey()));
+        assertTrue(new File(dir, "users.packed").length() > 5_000L * PackedUserTable.SLOT_BYTES);
+        store.close();
+    }
+
+    // Flips a secret byte of the user's slot on disk, as a torn write would
+    private void tearSlotOf(UUID id) throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, "users.packed"), "rw")) {
+            for (long off = HEADER_SIZE; off < file.length(); off += PackedUserTable.SLOT_BYTES) {
+                file.seek(off);
+                if (file.readLong() != id.getMostSignificantBits() || file.readLong() != id.getLeastSignificantBits()) continue;
+                file.seek(off + SECRET);
+                file.write(0x5A);
+                return;
+            }
+        }
+        throw new AssertionError("no slot for " + id);
+    }
+}
@@ -0,0 +1,156 @@
+package com.forkthus.twofadialog.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Tables are opened again over a copy of the buffer, the way PackedUserStore maps users.packed after a restart
+class PackedUserTableTest {
+    private static final int STATE = 16, SECRET = 20; // slot offsets, see PackedUserTable
+    private static final byte LIVE = 1;
+
+    private static final UserRecord ALICE = new UserRecord("JBSWY3DPEHPK3PXP", true, "203.0.113.7", 1_700_000_000_000L, 0, 0);
+    private static final UserRecord ALICE_V6 = new UserRecord("JBSWY3DPEHPK3PXP", true, "2001:db8:0:0:0:0:0:1", 1_700_000_060_000L, 2, 0);
+
+    @Test
+    void recordsRoundTrip() {
+        PackedUserTable table = PackedUserTable.allocate(16, false);
+        UUID id = UUID.randomUUID();
+        table.put(id, ALICE);
+        assertEquals(ALICE, table.get(id));
+        table.put(id, ALICE_V6);
+        assertEquals(ALICE_V6, table.get(id));
+        assertEquals(1, table.size());
+        assertTrue(table.remove(id));
+        assertNull(table.get(id));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    void badChecksumQuarantinesTheUser() {
+        ByteBuffer buf = ByteBuffer.allocate(16 * PackedUserTable.SLOT_BYTES);
+        PackedUserTable table = new PackedUserTable(buf, 0, 16);
+        UUID id = UUID.randomUUID(), other = UUID.randomUUID();
+        table.put(id, ALICE);
+        table.put(other, ALICE);
+        int slot = liveSlot(buf, id);
+        buf.put(slot * PackedUserTable.SLOT_BYTES + SECRET, (byte) 0x5A); // a torn write
+
+        PackedUserTable reopened = new PackedUserTable(buf, 0, table.capacity());
+        assertEquals(1, reopened.corrupt());
+        assertTrue(reopened.isQuarantined(id));
+        assertNull(reopened.get(id));
+        assertEquals(ALICE, reopened.get(other));
+        List<UUID> ids = new ArrayList<>();
+        reopened.forEachId(ids::add);
+        assertTrue(ids.contains(id)); // still listed, so bulk jobs see it
+
+        // Quarantine survives another restart until released
+        PackedUserTable again = new PackedUserTable(buf, 0, table.capacity());
+        assertTrue(again.isQuarantined(id));
+        assertTrue(again.release(id));
+        assertFalse(again.isQuarantined(id));
+        again.put(id, ALICE_V6);
+        assertEquals(ALICE_V6, new PackedUserTable(buf, 0, table.capacity()).get(id));
+    }
+
+    @Test
+    void updateLeavesTheOldSlotUntilTheNewOneIsWritten() {
+        ByteBuffer buf = ByteBuffer.allocate(16 * PackedUserTable.SLOT_BYTES);
+        PackedUserTable table = new PackedUserTable(buf, 0, 16);
+        UUID id = UUID.randomUUID();
+        table.put(id, ALICE);
+        int before = liveSlot(buf, id);
+        table.put(id, ALICE_V6);
+        int after = liveSlot(buf, id);
+        assertTrue(before != after, "updates go to a new slot");
+        assertEquals(1, table.size());
+
+        // Crash before the old slot was tombstoned, with the new slot torn: the old record is still there
+        ByteBuffer crashed = copy(buf);
+        crashed.put(before * PackedUserTable.SLOT_BYTES + STATE, LIVE);
+        crashed.put(after * PackedUserTable.SLOT_BYTES + SECRET, (byte) 0x5A);
+        PackedUserTable reopened = new PackedUserTable(crashed, 0, table.capacity());
+        assertEquals(ALICE, reopened.get(id));
+        assertFalse(reopened.isQuarantined(id));
+        assertEquals(1, reopened.size());
+
+        // Crash before the old slot was tombstoned, both intact: exactly one copy survives
+        crashed = copy(buf);
+        crashed.put(before * PackedUserTable.SLOT_BYTES + STATE, LIVE);
+        reopened = new PackedUserTable(crashed, 0, table.capacity());
+        assertEquals(1, reopened.size());
+        assertTrue(reopened.remove(id));
+        assertNull(reopened.get(id));
+    }
+
+    @Test
+    void growRehashesLiveAndQuarantinedSlots() {
+        ByteBuffer buf = ByteBuffer.allocate(64 * PackedUserTable.SLOT_BYTES);
+        PackedUserTable table = new PackedUserTable(buf, 0, 64);
+        Map<UUID, UserRecord> expected = new HashMap<>();
+        for (int i = 0; !table.full(); i++) {
+            UUID id = UUID.randomUUID();
+            UserRecord r = new UserRecord("JBSWY3DPEHPK3PXP", i % 2 == 0, "10.0.0." + (i % 250), i, i % 5, 0);
+            table.put(id, r);
+            expected.put(id, r);
+            if (i % 3 == 0) { // leave tombstones behind
+                table.remove(id);
+                expected.remove(id);
+            }
+        }
+        assertThrows(IllegalStateException.class, () -> table.put(UUID.randomUUID(), ALICE));
+
+        UUID damaged = expected.keySet().iterator().next();
+        buf.put(liveSlot(buf, damaged) * PackedUserTable.SLOT_BYTES + SECRET, (byte) 0x5A);
+        PackedUserTable source = new PackedUserTable(buf, 0, table.capacity());
+        expected.remove(damaged);
+
+        PackedUserTable bigger = PackedUserTable.allocate(PackedUserTable.capacityFor(source.size() * 2 + 1), false);
+        for (int from = 0; from < source.capacity(); from += 16) source.copyTo(bigger, from, from + 16); // as a grow does
+        assertEquals(expected.size(), bigger.size());
+        assertEquals(expected.size() + 1, bigger.used()); // no tombstones, one quarantined slot
+        assertFalse(bigger.full());
+        expected.forEach((id, r) -> assertEquals(r, bigger.get(id)));
+        assertTrue(bigger.isQuarantined(damaged));
+        bigger.put(UUID.randomUUID(), ALICE);
+        assertEquals(expected.size() + 1, bigger.size());
+    }
+
+    @Test
+    void packableRejectsWhatASlotCannotHold() {
+        assertTrue(PackedUserTable.packable(ALICE));
+        assertTrue(PackedUserTable.packable(ALICE_V6));
+        assertFalse(PackedUserTable.packable(ALICE.withSecret("JBSWY3DPEHPK3PXPJBSWY3DPEHPK3PXPJBSWY3DP"))); // 25 bytes
+        assertFalse(PackedUserTable.packable(ALICE.withLastIp("play.example.com")));
+        assertFalse(PackedUserTable.packable(ALICE.withLastIp("010.0.0.1"))); // would read back as 10.0.0.1
+        assertThrows(IllegalArgumentException.class, () -> PackedUserTable.allocate(16, false).put(UUID.randomUUID(), ALICE.withLastIp("::1x")));
+    }
+
+
+    private static ByteBuffer copy(ByteBuffer buf) {
+        ByteBuffer out = ByteBuffer.allocate(buf.capacity());
+        out.put(0, buf, 0, buf.capacity());
+        return out;
+    }
+
+    private static int liveSlot(ByteBuffer buf, UUID id) {
+        for (int i = 0; i < buf.capacity() / PackedUserTable.SLOT_BYTES; i++) {
+            int off = i * PackedUserTable.SLOT_BYTES;
+            if (buf.get(off + STATE) == LIVE && buf.getLong(off) == id.getMostSignificantBits()
+                    && buf.getLong(off + 8) == id.getLeastSignificantBits()) return i;
+        }
+        throw new AssertionError("no live slot for " + id);
+    }
+}